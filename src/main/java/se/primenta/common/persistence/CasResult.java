@@ -0,0 +1,53 @@
+package se.primenta.common.persistence;
+
+import java.util.Optional;
+
+import com.datastax.driver.core.Row;
+
+/**
+ * Result of a conditional (lightweight transaction) write.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class CasResult {
+
+    private final boolean applied;
+    private final Optional<Row> current;
+    private final int attempts;
+
+    CasResult(final boolean applied, final Optional<Row> current, final int attempts) {
+        this.applied = applied;
+        this.current = current;
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return true if the condition held and the write was applied.
+     */
+    public boolean wasApplied() {
+        return applied;
+    }
+
+    /**
+     * The row holds the current values of the columns in the condition when the write was not applied, for
+     * "if not exists" it holds the existing row.
+     *
+     * @return the current values, empty when the write was applied.
+     */
+    public Optional<Row> getCurrentValues() {
+        return current;
+    }
+
+    /**
+     * @return number of attempts needed, more than one means there was contention on the partition.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        return "CasResult applied=" + applied + ", attempts=" + attempts;
+    }
+}
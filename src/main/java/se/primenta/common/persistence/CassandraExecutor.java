@@ -1,8 +1,12 @@
 package se.primenta.common.persistence;
 
+import java.util.List;
+import java.util.function.Consumer;
+
 import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Statement;
 
 public interface CassandraExecutor {
@@ -34,4 +38,58 @@ public interface CassandraExecutor {
      */
     ResultSetFuture executeAsync(final Statement statement);
 
+    /**
+     * Read a full table in parallel. The token ring is split into ranges following the replica ownership and each
+     * range is read with its own paged query, pinned to a local replica, on a bounded worker pool. A failing split is
+     * retried from the last fetched page, a split whose consumer throws fails without retries.
+     *
+     * @param table
+     *            name of the table in the session keyspace.
+     * @param columns
+     *            columns to read, an empty list reads all columns.
+     * @param splitCount
+     *            the minimum number of token range splits to divide the table into.
+     * @param consumer
+     *            receives every row. Is called from several worker threads and must be thread safe.
+     * @return a handle to follow the progress of the scan and to wait for it to finish.
+     * @throws IllegalStateException
+     *             if the driver knows no token ranges, as when token metadata is disabled.
+     */
+    TableScan scan(final String table, final List<String> columns, final int splitCount, final Consumer<Row> consumer);
+
+    /**
+     * Execute a conditional write (lightweight transaction). Conditional writes to the same partition are queued
+     * within the application so they do not compete with each other in Paxos, and a CAS timeout is retried after a
+     * random back off instead of right away. Please note that a retry after a timeout can report the write as not
+     * applied if the first attempt actually made it. A statement marked as not idempotent is never retried, the timeout
+     * is thrown and the outcome is unknown. Read the row back with a SERIAL or LOCAL_SERIAL consistency level to find
+     * out, the read completes any Paxos round left in progress before it returns the current values.
+     *
+     * @param statement
+     *            a statement with an IF condition. Use bound statements, the partition is found from the routing key.
+     *            Statements without a routing key are not queued.
+     * @return if the write was applied and otherwise the current values.
+     * @throws PersistenceRuntimeException
+     *             if the write timed out and was not retried.
+     */
+    CasResult executeConditional(final Statement statement);
+
+    /**
+     * Execute a query and decode the result page by page into primitive column arrays, avoiding a boxed value per
+     * column. The consumer is called once per page with the same reused {@link ColumnarChunk}, so the arrays must not
+     * be kept after the call returns.
+     *
+     * @param statement
+     *            a query selecting exactly the columns of the schema, in the same order.
+     * @param schema
+     *            the primitive type of each selected column.
+     * @param consumer
+     *            receives one chunk per page.
+     * @return the total number of rows read.
+     * @throws PersistenceRuntimeException
+     *             if the selected columns do not match the schema.
+     */
+    long executeColumnar(final Statement statement, final List<ColumnarChunk.Type> schema,
+            final Consumer<ColumnarChunk> consumer);
+
 }
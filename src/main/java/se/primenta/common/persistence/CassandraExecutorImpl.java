@@ -1,18 +1,51 @@
 package se.primenta.common.persistence;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ColumnMetadata;
+import com.datastax.driver.core.EndPoint;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.KeyspaceMetadata;
+import com.datastax.driver.core.Metadata;
+import com.datastax.driver.core.PagingState;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.TokenRange;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.CodecNotFoundException;
+import com.datastax.driver.core.exceptions.CoordinatorException;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidTypeException;
 import com.datastax.driver.core.exceptions.QueryValidationException;
 import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.querybuilder.Select;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 
@@ -20,36 +53,117 @@ public final class CassandraExecutorImpl implements CassandraExecutor {
 
     final static int MAX_STORE_RETRIES = 3;
 
+    private final static int SCAN_WORKERS = Runtime.getRuntime().availableProcessors();
+
+    private final static long CAS_BACKOFF_MILLIS = 10;
+
+    private final static long CAS_MAX_BACKOFF_MILLIS = 1000;
+
+    /**
+     * Conditional writes are serialized per partition by all executors, hashed into a fixed number of locks. The locks
+     * are fair so the writers to a partition take turns in the order they arrived.
+     */
+    private final static Lock[] CAS_LOCKS = new Lock[1024];
+
+    static {
+        for (int i = 0; i < CAS_LOCKS.length; i++) {
+            CAS_LOCKS[i] = new ReentrantLock(true);
+        }
+    }
+
     private final Session session;
 
+    private final String keyspace;
+
+    private final InFlightRequests inFlight;
+
+    private final Optional<HotPartitionDetector> hotPartitions;
+
+    private final Optional<CircuitBreakers> circuitBreakers;
+
+    private final Optional<RateLimits> rateLimits;
+
+    private final Priority priority;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(CassandraSessionImpl.class);
 
     private final ListeningExecutorService executor = MoreExecutors.listeningDecorator(Executors.newCachedThreadPool());
 
-    protected CassandraExecutorImpl(final Session session) {
+    protected CassandraExecutorImpl(final Session session, final String keyspace, final InFlightRequests inFlight,
+            final Optional<HotPartitionDetector> hotPartitions, final Optional<CircuitBreakers> circuitBreakers,
+            final Optional<RateLimits> rateLimits, final Priority priority) {
         this.session = session;
+        this.keyspace = keyspace;
+        this.inFlight = inFlight;
+        this.hotPartitions = hotPartitions;
+        this.circuitBreakers = circuitBreakers;
+        this.rateLimits = rateLimits;
+        this.priority = priority;
     }
 
     @Override
     public void fireAndForget(final Statement statement) {
 
-        final ResultSetFuture future = session.executeAsync(statement);
+        inFlight.begin();
+        try {
+            admit(statement);
+        } catch (final RuntimeException e) {
+            inFlight.end();
+            throw e;
+        }
+        final Optional<CircuitBreaker> breaker;
+        try {
+            track(statement);
+            breaker = tableBreaker(statement);
+        } catch (final RuntimeException e) {
+            release();
+            inFlight.end();
+            throw e;
+        }
+        if (breaker.isPresent() && !breaker.get().tryAcquire(System.currentTimeMillis())) {
+            release();
+            inFlight.end();
+            circuitBreakers.get().shed(statement);
+            return;
+        }
+        final long started = System.nanoTime();
+        final ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (final RuntimeException e) {
+            // Thrown before the statement was sent, for instance a value without a codec.
+            breaker.ifPresent(CircuitBreaker::cancel);
+            release();
+            inFlight.end();
+            throw e;
+        }
         Futures.addCallback(future, new FutureCallback<ResultSet>() {
 
             @Override
             public void onSuccess(final ResultSet result) {
-                // Do nothing.
+                onOutcome(breaker, started, result, null);
+                release();
+                inFlight.end();
             }
 
             @Override
             public void onFailure(final Throwable t) {
 
-                if (t instanceof QueryValidationException) {
-                    LOGGER.error("Fire and Forget failed. {}", statement.toString(), t);
-                } else {
-                    LOGGER.error("Async persist failed for {}, {}. Backing off to a serial execution",
-                            statement.toString(), t);
-                    retryExecute(statement);
+                onOutcome(breaker, started, null, t);
+                try {
+                    if (t instanceof QueryValidationException || Boolean.FALSE.equals(statement.isIdempotent())) {
+                        LOGGER.error("Fire and Forget failed. {}", statement.toString(), t);
+                    } else if (breaker.isPresent() && !breaker.get().allowsRequests(System.currentTimeMillis())) {
+                        // No synchronous retry when the table is already failing.
+                        circuitBreakers.get().shed(statement);
+                    } else {
+                        LOGGER.error("Async persist failed for {}, {}. Backing off to a serial execution",
+                                statement.toString(), t);
+                        retryExecute(statement);
+                    }
+                } finally {
+                    release();
+                    inFlight.end();
                 }
             }
         }, executor);
@@ -57,12 +171,515 @@ public final class CassandraExecutorImpl implements CassandraExecutor {
 
     @Override
     public ResultSet execute(final Statement statement) {
-        return retryExecute(statement);
+
+        inFlight.begin();
+        try {
+            admit(statement);
+            try {
+                track(statement);
+                final Optional<CircuitBreaker> breaker = acquire(statement);
+                final long started = System.nanoTime();
+                try {
+                    final ResultSet result = retryExecute(statement);
+                    onOutcome(breaker, started, result, null);
+                    return result;
+                } catch (final RuntimeException e) {
+                    onOutcome(breaker, started, null, e);
+                    throw e;
+                }
+            } finally {
+                release();
+            }
+        } finally {
+            inFlight.end();
+        }
     }
 
     @Override
     public ResultSetFuture executeAsync(final Statement statement) {
-        return session.executeAsync(statement);
+
+        inFlight.begin();
+        if (!rateLimits.isPresent()) {
+            return send(statement);
+        }
+        final ListenableFuture<Void> admitted;
+        try {
+            admitted = rateLimits.get().acquire(priority, tableOf(statement));
+        } catch (final RuntimeException e) {
+            inFlight.end();
+            throw e;
+        }
+        if (admitted.isDone()) {
+            return send(statement);
+        }
+        // Queued, the caller gets a future that follows the statement once it is sent.
+        final QueuedResultSetFuture queued = new QueuedResultSetFuture();
+        admitted.addListener(() -> {
+            if (queued.isCancelled()) {
+                release();
+                inFlight.end();
+                return;
+            }
+            try {
+                queued.setFuture(send(statement));
+            } catch (final RuntimeException e) {
+                queued.setException(e);
+            }
+        }, MoreExecutors.directExecutor());
+        return queued;
+    }
+
+    /**
+     * Send a statement that has been admitted by the rate limits.
+     */
+    private ResultSetFuture send(final Statement statement) {
+
+        final Optional<CircuitBreaker> breaker;
+        try {
+            track(statement);
+            breaker = acquire(statement);
+        } catch (final RuntimeException e) {
+            release();
+            inFlight.end();
+            throw e;
+        }
+        final long started = System.nanoTime();
+        final ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (final RuntimeException e) {
+            // Thrown before the statement was sent, for instance a value without a codec.
+            breaker.ifPresent(CircuitBreaker::cancel);
+            release();
+            inFlight.end();
+            throw e;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+
+            @Override
+            public void onSuccess(final ResultSet result) {
+                onOutcome(breaker, started, result, null);
+                release();
+                inFlight.end();
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                onOutcome(breaker, started, null, t);
+                release();
+                inFlight.end();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    /**
+     * Wait for an in-flight slot of the executor's priority class, and for a token if the table is rate limited.
+     *
+     * @throws ThrottledException
+     *             if the queue of the class is full or the slot was not given within the max queue wait.
+     */
+    private void admit(final Statement statement) {
+        if (rateLimits.isPresent()) {
+            rateLimits.get().await(priority, tableOf(statement));
+        }
+    }
+
+    private void release() {
+        rateLimits.ifPresent(limits -> limits.release(priority));
+    }
+
+    /**
+     * Take a permit from the circuit breaker of the statement's table.
+     *
+     * @throws CircuitOpenException
+     *             if the circuit is open.
+     */
+    private Optional<CircuitBreaker> acquire(final Statement statement) {
+
+        final Optional<CircuitBreaker> breaker = tableBreaker(statement);
+        if (breaker.isPresent() && !breaker.get().tryAcquire(System.currentTimeMillis())) {
+            throw new CircuitOpenException("Circuit is open, statement shed. " + breaker.get());
+        }
+        return breaker;
+    }
+
+    private Optional<CircuitBreaker> tableBreaker(final Statement statement) {
+        return circuitBreakers.isPresent() ? tableOf(statement).map(circuitBreakers.get()::forTable)
+                : Optional.empty();
+    }
+
+    /**
+     * Report the outcome of a call to the breakers of the table and of the coordinator. Invalid queries are the fault
+     * of the client and do not count as failures. Statements with values that could not be serialized were never sent
+     * and cancelled requests were given up by the caller, neither is counted and their permit is given back.
+     */
+    private void onOutcome(final Optional<CircuitBreaker> breaker, final long started, final ResultSet result,
+            final Throwable failure) {
+
+        if (!circuitBreakers.isPresent()) {
+            return;
+        }
+        final long latency = System.nanoTime() - started;
+        final long now = System.currentTimeMillis();
+        final Throwable cause = failure instanceof PersistenceRuntimeException && failure.getCause() != null
+                ? failure.getCause() : failure;
+        if (cause instanceof InvalidTypeException || cause instanceof CodecNotFoundException
+                || cause instanceof CancellationException) {
+            breaker.ifPresent(CircuitBreaker::cancel);
+            return;
+        }
+        final boolean failed = cause != null && !(cause instanceof QueryValidationException);
+        breaker.ifPresent(b -> b.onResult(failed, latency, now));
+
+        EndPoint coordinator = null;
+        if (result != null && result.getExecutionInfo().getQueriedHost() != null) {
+            coordinator = result.getExecutionInfo().getQueriedHost().getEndPoint();
+        } else if (cause instanceof CoordinatorException) {
+            coordinator = ((CoordinatorException) cause).getEndPoint();
+        }
+        if (coordinator != null) {
+            circuitBreakers.get().forHost(coordinator).onResult(failed, latency, now);
+        }
+    }
+
+    @Override
+    public TableScan scan(final String table, final List<String> columns, final int splitCount,
+            final Consumer<Row> consumer) {
+
+        final Metadata metadata = session.getCluster().getMetadata();
+        final KeyspaceMetadata keyspaceMetadata = metadata.getKeyspace(keyspace);
+        final TableMetadata tableMetadata = keyspaceMetadata == null ? null : keyspaceMetadata.getTable(table);
+        if (tableMetadata == null) {
+            throw new PersistenceRuntimeException("Unknown table " + table + " in keyspace " + keyspace);
+        }
+
+        final String token = QueryBuilder.token(tableMetadata.getPartitionKey().stream().map(ColumnMetadata::getName)
+                .toArray(String[]::new));
+        final Select.Selection selection = QueryBuilder.select();
+        columns.forEach(selection::column);
+        final Select select = columns.isEmpty() ? QueryBuilder.select().all().from(keyspace, table)
+                : selection.from(keyspace, table);
+        final PreparedStatement prepared = session.prepare(select
+                .where(QueryBuilder.gt(token, QueryBuilder.bindMarker()))
+                .and(QueryBuilder.lte(token, QueryBuilder.bindMarker())));
+
+        final Set<TokenRange> ringRanges = metadata.getTokenRanges();
+        if (ringRanges.isEmpty()) {
+            throw new IllegalStateException("No token ranges known for keyspace " + keyspace
+                    + ", is token metadata disabled?");
+        }
+        final List<TokenRange> splits = split(ringRanges, splitCount);
+        final TableScan scan = new TableScan(table, splits.size());
+        LOGGER.info("Scanning {} in {} splits", table, splits.size());
+
+        // All splits are counted before any is submitted, a refused split leaves nothing running.
+        int begun = 0;
+        try {
+            for (; begun < splits.size(); begun++) {
+                inFlight.begin();
+            }
+        } catch (final RuntimeException e) {
+            for (; begun > 0; begun--) {
+                inFlight.end();
+            }
+            throw e;
+        }
+
+        final ListeningExecutorService workers = MoreExecutors
+                .listeningDecorator(Executors.newFixedThreadPool(Math.max(1, Math.min(SCAN_WORKERS, splits.size()))));
+        final List<ListenableFuture<Long>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < splits.size(); i++) {
+                final TokenRange range = splits.get(i);
+                final Host replica = localReplica(metadata.getReplicas(keyspace, range), i);
+                futures.add(workers.submit(() -> {
+                    try {
+                        return scanSplit(prepared, range, replica, consumer, scan);
+                    } finally {
+                        inFlight.end();
+                    }
+                }));
+            }
+        } catch (final RuntimeException e) {
+            // The submitted splits end their own count when they are done.
+            for (int i = futures.size(); i < splits.size(); i++) {
+                inFlight.end();
+            }
+            throw e;
+        } finally {
+            workers.shutdown();
+        }
+        scan.setFuture(Futures.allAsList(futures));
+        return scan;
+    }
+
+    @Override
+    public CasResult executeConditional(final Statement statement) {
+
+        inFlight.begin();
+        try {
+            track(statement);
+            final Optional<Lock> lock = lockOf(statement);
+            int tries = 0;
+            while (true) {
+                tries++;
+                // Every attempt takes its own slot and breaker permit once it holds the partition lock, so writers
+                // queued behind a hot partition hold neither, and none is held while backing off.
+                lock.ifPresent(Lock::lock);
+                try {
+                    admit(statement);
+                    try {
+                        final Optional<CircuitBreaker> breaker = acquire(statement);
+                        final long started = System.nanoTime();
+                        try {
+                            final ResultSet result = session.execute(statement);
+                            onOutcome(breaker, started, result, null);
+                            final boolean applied = result.wasApplied();
+                            return new CasResult(applied,
+                                    applied ? Optional.empty() : Optional.ofNullable(result.one()), tries);
+                        } catch (final WriteTimeoutException wte) {
+                            onOutcome(breaker, started, null, wte);
+                            if (wte.getWriteType() != WriteType.CAS || tries >= MAX_STORE_RETRIES) {
+                                throw new PersistenceRuntimeException("Timeout problems when storing data.", wte);
+                            }
+                            if (Boolean.FALSE.equals(statement.isIdempotent())) {
+                                throw new PersistenceRuntimeException(
+                                        "Conditional write timed out and is not idempotent, it may have been applied.",
+                                        wte);
+                            }
+                            LOGGER.warn("Conditional write failed with CAS contention, will retry.");
+                        } catch (final RuntimeException e) {
+                            onOutcome(breaker, started, null, e);
+                            throw e;
+                        }
+                    } finally {
+                        release();
+                    }
+                } finally {
+                    lock.ifPresent(Lock::unlock);
+                }
+                // Back off outside the lock with full jitter, so competing writers spread out.
+                backOff(tries);
+            }
+        } finally {
+            inFlight.end();
+        }
+    }
+
+    /**
+     * Count the partition of a sampled bound statement in the hot partition detector. Only bound statements are
+     * counted since the table and the routing key are known from the prepared statement.
+     */
+    private void track(final Statement statement) {
+
+        if (!hotPartitions.isPresent() || !hotPartitions.get().sample()) {
+            return;
+        }
+        final Optional<String> table = tableOf(statement);
+        final ByteBuffer routingKey = statement.getRoutingKey(
+                session.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion(),
+                session.getCluster().getConfiguration().getCodecRegistry());
+        if (table.isPresent() && routingKey != null) {
+            hotPartitions.get().record(table.get(), routingKey);
+        }
+    }
+
+    /**
+     * The keyspace qualified table of a bound statement, "keyspace.table", found from the variables of the prepared
+     * statement. Tables with the same name in different keyspaces are kept apart.
+     */
+    private static Optional<String> tableOf(final Statement statement) {
+
+        if (!(statement instanceof BoundStatement)) {
+            return Optional.empty();
+        }
+        final ColumnDefinitions variables = ((BoundStatement) statement).preparedStatement().getVariables();
+        return variables.size() > 0 ? Optional.of(variables.getKeyspace(0) + "." + variables.getTable(0))
+                : Optional.empty();
+    }
+
+    /**
+     * The lock of the partition of a statement. Statements without a routing key are not serialized, guessing a
+     * partition from them would queue unrelated writes behind each other.
+     */
+    private Optional<Lock> lockOf(final Statement statement) {
+
+        final ByteBuffer routingKey = statement.getRoutingKey(
+                session.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion(),
+                session.getCluster().getConfiguration().getCodecRegistry());
+        if (routingKey == null) {
+            return Optional.empty();
+        }
+        final int hash = routingKey.hashCode();
+        return Optional.of(CAS_LOCKS[(hash ^ (hash >>> 16)) & (CAS_LOCKS.length - 1)]);
+    }
+
+    private static void backOff(final int tries) {
+
+        final long ceiling = Math.min(CAS_MAX_BACKOFF_MILLIS, CAS_BACKOFF_MILLIS << tries);
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceRuntimeException("Interrupted while waiting to retry a conditional write.", e);
+        }
+    }
+
+    @Override
+    public long executeColumnar(final Statement statement, final List<ColumnarChunk.Type> schema,
+            final Consumer<ColumnarChunk> consumer) {
+
+        inFlight.begin();
+        try {
+            track(statement);
+            // The slot is held while the pages are fetched.
+            admit(statement);
+        } catch (final RuntimeException e) {
+            inFlight.end();
+            throw e;
+        }
+        try {
+            final Optional<CircuitBreaker> breaker = acquire(statement);
+            final long started = System.nanoTime();
+            final ResultSet result;
+            try {
+                result = retryExecute(statement);
+                onOutcome(breaker, started, result, null);
+            } catch (final RuntimeException e) {
+                onOutcome(breaker, started, null, e);
+                throw e;
+            }
+            final ColumnarChunk chunk = new ColumnarChunk(schema);
+            verifySchema(result.getColumnDefinitions(), chunk);
+
+            long rows = 0;
+            // Fetches the next page when the current one is consumed.
+            while (!result.isExhausted()) {
+                final int available = result.getAvailableWithoutFetching();
+                chunk.reset(available);
+                for (int i = 0; i < available; i++) {
+                    final Row row = result.one();
+                    for (int column = 0; column < chunk.getColumnCount(); column++) {
+                        chunk.set(column, row.getBytesUnsafe(column));
+                    }
+                    chunk.endRow();
+                }
+                consumer.accept(chunk);
+                rows += available;
+            }
+            return rows;
+        } finally {
+            release();
+            inFlight.end();
+        }
+    }
+
+    private static void verifySchema(final ColumnDefinitions definitions, final ColumnarChunk chunk) {
+
+        if (definitions.size() != chunk.getColumnCount()) {
+            throw new PersistenceRuntimeException("Query selects " + definitions.size() + " columns, the schema has "
+                    + chunk.getColumnCount());
+        }
+        for (int i = 0; i < definitions.size(); i++) {
+            if (!chunk.getType(i).accepts(definitions.getType(i))) {
+                throw new PersistenceRuntimeException("Column " + definitions.getName(i) + " of type "
+                        + definitions.getType(i) + " can not be decoded as " + chunk.getType(i));
+            }
+        }
+    }
+
+    /**
+     * Divide the ring ranges, which each are owned by one replica set, into at least the wanted number of splits.
+     * Wrapping ranges are unwrapped since they can not be expressed as a single token restriction.
+     */
+    private static List<TokenRange> split(final Set<TokenRange> ringRanges, final int splitCount) {
+
+        final int perRange = Math.max(1, (int) Math.ceil((double) splitCount / ringRanges.size()));
+        return ringRanges.stream().sorted().flatMap(r -> r.splitEvenly(perRange).stream())
+                .flatMap(r -> r.unwrap().stream()).collect(Collectors.toList());
+    }
+
+    private Host localReplica(final Set<Host> replicas, final int index) {
+
+        final LoadBalancingPolicy policy = session.getCluster().getConfiguration().getPolicies()
+                .getLoadBalancingPolicy();
+        final List<Host> local = replicas.stream().filter(Host::isUp)
+                .filter(h -> policy.distance(h) == HostDistance.LOCAL).collect(Collectors.toList());
+        return local.isEmpty() ? null : local.get(index % local.size());
+    }
+
+    /**
+     * Read one split to the end. A failed split is resumed from the last fully consumed page, so rows are never
+     * delivered twice. The replica pin is dropped on retries and the load balancing policy takes over. Every attempt
+     * asks the breaker of the table for a permit, the split fails when the circuit is open.
+     */
+    private long scanSplit(final PreparedStatement prepared, final TokenRange range, final Host replica,
+            final Consumer<Row> consumer, final TableScan scan) {
+
+        long rows = 0;
+        int tries = 0;
+        PagingState paging = null;
+        while (true) {
+            tries++;
+            try {
+                final BoundStatement statement = prepared.bind().setToken(0, range.getStart()).setToken(1,
+                        range.getEnd());
+                if (replica != null && tries == 1) {
+                    statement.setHost(replica);
+                }
+                if (paging != null) {
+                    statement.setPagingState(paging);
+                }
+                final Optional<CircuitBreaker> breaker = acquire(statement);
+                final long started = System.nanoTime();
+                final ResultSet result;
+                try {
+                    result = session.execute(statement);
+                    onOutcome(breaker, started, result, null);
+                } catch (final RuntimeException e) {
+                    onOutcome(breaker, started, null, e);
+                    throw e;
+                }
+                // Fetches the next page when the current one is consumed.
+                while (!result.isExhausted()) {
+                    for (int i = result.getAvailableWithoutFetching(); i > 0; i--) {
+                        accept(consumer, result.one(), range);
+                        scan.onRow();
+                        rows++;
+                    }
+                    paging = result.getExecutionInfo().getPagingState();
+                }
+                scan.onSplitCompleted();
+                return rows;
+            } catch (final QueryValidationException | CircuitOpenException e) {
+                scan.onSplitFailed();
+                throw e;
+            } catch (final DriverException de) {
+                if (tries <= MAX_STORE_RETRIES) {
+                    LOGGER.warn("Scan of split {} failed, will retry. {}", range, de.getMessage());
+                } else {
+                    scan.onSplitFailed();
+                    throw new PersistenceRuntimeException("Scan of split " + range + " failed.", de);
+                }
+            } catch (final RuntimeException e) {
+                scan.onSplitFailed();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Hand a row to the consumer of a scan. A failing consumer is never retried, it would get the rows of the page
+     * again, so its exception is wrapped to keep it apart from the driver exceptions that are.
+     */
+    private static void accept(final Consumer<Row> consumer, final Row row, final TokenRange range) {
+
+        try {
+            consumer.accept(row);
+        } catch (final RuntimeException e) {
+            throw new PersistenceRuntimeException("Consumer failed in scan of split " + range + ".", e);
+        }
     }
 
     /**
@@ -84,7 +701,8 @@ public final class CassandraExecutorImpl implements CassandraExecutor {
                 // The WriteTimeOutException will occur if CAS operations fail.
                 // It will not be handled by the DefaultPolicy and we need to retry manually.
                 // But lets not care what type of timeout reason there is, lets retry anyway.
-                if (tries < MAX_STORE_RETRIES) {
+                // Statements explicitly marked as not idempotent are never retried.
+                if (tries < MAX_STORE_RETRIES && !Boolean.FALSE.equals(statement.isIdempotent())) {
                     LOGGER.warn("Storing data failed with " + wte.getWriteType() + " problems, will retry.");
                 } else {
                     throw new PersistenceRuntimeException("Timeout problems when storing data.", wte);
@@ -1,8 +1,12 @@
 package se.primenta.common.persistence;
 
+import java.time.Duration;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletionStage;
 
 import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.PreparedStatement;
@@ -28,6 +32,19 @@ public interface CassandraSession {
      */
     public PreparedStatement prepare(final RegularStatement statement);
 
+    /**
+     * Prepare a statement and bind it to a named execution profile. All statements bound from the returned prepared
+     * statement get the consistency, timeouts, fetch size, idempotency and retry policy of the profile.
+     *
+     * @param statement
+     * @param profile
+     *            name of a profile registered on the builder.
+     * @return a prepared statement executing with the profile.
+     * @throws PersistenceRuntimeException
+     *             if there is no profile with the name.
+     */
+    public PreparedStatement prepare(final RegularStatement statement, final String profile);
+
     /**
      * Gives you an executing component for executing queries. Uses the thread safe Cassandra session and wraps in
      * features for automatic handling of possible problems taking care of your head ache for you. It also wraps the
@@ -37,6 +54,21 @@ public interface CassandraSession {
      */
     public CassandraExecutor getExecutor();
 
+    /**
+     * An executor for statements of a priority class. Without {@link RateLimits} registered on the session the
+     * priority has no effect. With them, the synchronous calls and fire and forget wait while the class is queued,
+     * and {@link CassandraExecutor#executeAsync} returns a future that completes when the statement is sent and done.
+     * Statements are rejected with a {@link ThrottledException} when the queue of the class is full, or when a waiting
+     * call does not get a slot within the max queue wait of the rate limits. The waiting calls must not be made from
+     * callbacks run by the driver, such as listeners on a result future, since the slot they wait for may only be
+     * given back by another such callback.
+     *
+     * @param priority
+     *            of all statements of the executor, {@link #getExecutor()} is interactive.
+     * @return An executor object that should be reused in the entire life cycle of the application.
+     */
+    public CassandraExecutor getExecutor(Priority priority);
+
     /**
      * Gives a Mapping Manager that can be used to create automatic mapping of objects. Please note that by using the
      * mapper all the automatic fail management is not used. This could still be ok for a non performant application.
@@ -64,6 +96,41 @@ public interface CassandraSession {
      */
     public TupleType createTupleType(DataType a, DataType b);
 
+    /**
+     * Time spent in the phases of the startup of the session, keyspace and table creation, connect, prepare of the
+     * registered statements and warm up of the connections.
+     *
+     * @return the startup timings.
+     */
+    public StartupTimings getStartupTimings();
+
+    /**
+     * Create a logical session for another keyspace that shares the cluster connection and pool with this session.
+     * The new session has its own executors and in-flight book keeping and is closed separately, the connections are
+     * closed when the last session sharing them is closed. Since the connections default to the keyspace of the
+     * session first built, statements prepared and executed through the new session must be keyspace qualified,
+     * "select * from otherkeyspace.table". The mapping manager of the new session maps entities without a keyspace in
+     * their table annotation to the new keyspace, its driver session rejects query strings naming a table without a
+     * keyspace and is not closed by closing it.
+     *
+     * @param keyspace
+     *            an existing keyspace.
+     * @return a session for the keyspace.
+     */
+    public CassandraSession forKeyspace(String keyspace);
+
+    /**
+     * Close the session gracefully. New work is rejected by all executors while the operations in flight, including
+     * queued retries, get the chance to finish before the deadline. The connections are closed when the work is done or
+     * the deadline has passed. Closing an already closed session does nothing. The session is closed with a default
+     * deadline by a shutdown hook if it has not been closed before the JVM exits.
+     *
+     * @param timeout
+     *            the longest time to wait for outstanding operations.
+     * @return the number of operations completed and abandoned during the close.
+     */
+    public DrainResult close(Duration timeout);
+
     /**
      * Builder for a session with auto create for keyspace and column family features.
      *
@@ -81,6 +148,12 @@ public interface CassandraSession {
         private List<? extends ColumnDefinition> definitions = Collections.emptyList();
         private Optional<String> preUsername = Optional.empty();
         private Optional<String> prePassword = Optional.empty();
+        private List<? extends RegularStatement> statements = Collections.emptyList();
+        private Optional<Integer> connectionsPerHost = Optional.empty();
+        private final Map<String, ExecutionProfile> profiles = new HashMap<>();
+        private Optional<HotPartitionDetector> hotPartitions = Optional.empty();
+        private Optional<CircuitBreakers> circuitBreakers = Optional.empty();
+        private Optional<RateLimits> rateLimits = Optional.empty();
 
         public final class PreprocessUser {
             private PreprocessUser() {
@@ -109,6 +182,10 @@ public interface CassandraSession {
             public CassandraSession build() {
                 return new Build().build();
             }
+
+            public CompletionStage<CassandraSession> buildAsync() {
+                return new Build().buildAsync();
+            }
         }
 
         public final class Credentials {
@@ -134,6 +211,10 @@ public interface CassandraSession {
                 return new Build().build();
             }
 
+            public CompletionStage<CassandraSession> buildAsync() {
+                return new Build().buildAsync();
+            }
+
             public PreprocessUser preprocessTheseStatements(
                     final List<? extends ColumnDefinition> columnDefinitions) {
                 definitions = Optional.of(columnDefinitions).get();
@@ -146,9 +227,24 @@ public interface CassandraSession {
             }
 
             public CassandraSession build() {
-                return new CassandraSessionImpl(username, password, keyspace, nodes, replication, datacenter,
+                return starter().startAndWait();
+            }
+
+            /**
+             * Build the session without blocking. The stage completes when the session is connected, the registered
+             * statements are prepared and the connections to the local hosts are warmed up.
+             *
+             * @return the session when it is ready for use.
+             */
+            public CompletionStage<CassandraSession> buildAsync() {
+                return starter().start();
+            }
+
+            private SessionStarter starter() {
+                return new SessionStarter(username, password, keyspace, nodes, replication, datacenter,
                         preUsername,
-                        prePassword, definitions);
+                        prePassword, definitions, statements, connectionsPerHost, profiles, hotPartitions,
+                        circuitBreakers, rateLimits);
             }
         }
 
@@ -171,6 +267,55 @@ public interface CassandraSession {
             return this;
         }
 
+        /**
+         * Statements to prepare in parallel during the startup. Calls to {@link CassandraSession#prepare} with the same
+         * query returns the already prepared statement.
+         */
+        public SessionBuilder prepareOnStartup(final List<? extends RegularStatement> startupStatements) {
+            statements = Optional.of(startupStatements).get();
+            return this;
+        }
+
+        /**
+         * Open this many connections to every local host when connecting, instead of growing the pools on demand.
+         */
+        public SessionBuilder withConnectionsPerHost(final int connections) {
+            connectionsPerHost = Optional.of(connections);
+            return this;
+        }
+
+        /**
+         * Register a named execution profile that statements can be prepared with.
+         */
+        public SessionBuilder withExecutionProfile(final String name, final ExecutionProfile profile) {
+            profiles.put(Optional.of(name).get(), Optional.of(profile).get());
+            return this;
+        }
+
+        /**
+         * Let all executors of the session count their bound statements in a hot partition detector.
+         */
+        public SessionBuilder detectHotPartitions(final HotPartitionDetector detector) {
+            hotPartitions = Optional.of(detector);
+            return this;
+        }
+
+        /**
+         * Guard the executors with circuit breakers per table and per coordinator host.
+         */
+        public SessionBuilder withCircuitBreakers(final CircuitBreakers breakers) {
+            circuitBreakers = Optional.of(breakers);
+            return this;
+        }
+
+        /**
+         * Rate limit the statements of the executors per table and schedule them by priority class.
+         */
+        public SessionBuilder withRateLimits(final RateLimits limits) {
+            rateLimits = Optional.of(limits);
+            return this;
+        }
+
         public Replication usingKeyspace(final String keyspaceName) {
             keyspace = Optional.of(keyspaceName).get();
             return new Replication();
@@ -1,27 +1,25 @@
 package se.primenta.common.persistence;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Configuration;
 import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.RegularStatement;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.TupleType;
 import com.datastax.driver.core.TypeCodec;
-import com.datastax.driver.core.exceptions.QueryExecutionException;
-import com.datastax.driver.core.exceptions.QueryValidationException;
-import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
-import com.datastax.driver.core.policies.DowngradingConsistencyRetryPolicy;
-import com.datastax.driver.core.policies.LoggingRetryPolicy;
-import com.datastax.driver.extras.codecs.jdk8.InstantCodec;
-import com.datastax.driver.extras.codecs.jdk8.LocalDateCodec;
-import com.datastax.driver.extras.codecs.jdk8.LocalTimeCodec;
 import com.datastax.driver.mapping.MappingManager;
 
 /**
@@ -33,138 +31,237 @@ import com.datastax.driver.mapping.MappingManager;
 public final class CassandraSessionImpl implements CassandraSession {
 
     private final String keyspace;
-    private final String nodes;
-    private final String replication;
-    private final Optional<String> datacenter;
     private final Session sessionSingleton;
     private final MappingManager mappingManager;
+    private final Map<String, PreparedStatement> prepared;
+    private final Map<String, ExecutionProfile> profiles;
+    private final StartupTimings timings;
+    private final Optional<HotPartitionDetector> hotPartitions;
+    private final Optional<CircuitBreakers> circuitBreakers;
+    private final Optional<RateLimits> rateLimits;
+    private final Set<CassandraSessionImpl> clusterUsers;
+    private final Thread shutdownHook;
+    private final InFlightRequests inFlight = new InFlightRequests();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CassandraSessionImpl.class);
 
-    private static final String CREATE_KEYSPACE = "CREATE KEYSPACE IF NOT EXISTS %s WITH REPLICATION = %s";
+    private static final Duration SHUTDOWN_TIMEOUT = Duration.ofSeconds(10);
 
     /**
-     * This is where all the magic happens.
+     * Wraps a connected session, the startup itself is done by the {@link SessionStarter}.
      */
-    protected CassandraSessionImpl(final String user,
-            final String password,
-            final String keyspace,
-            final String nodes,
-            final String replication,
-            final Optional<String> datacenter,
-            final Optional<String> preuser,
-            final Optional<String> prepassword,
-            final List<? extends ColumnDefinition> definitions) {
+    CassandraSessionImpl(final String keyspace,
+            final Session session,
+            final Map<String, PreparedStatement> prepared,
+            final Map<String, ExecutionProfile> profiles,
+            final Optional<HotPartitionDetector> hotPartitions,
+            final Optional<CircuitBreakers> circuitBreakers,
+            final Optional<RateLimits> rateLimits,
+            final StartupTimings timings) {
 
         this.keyspace = keyspace;
-        this.nodes = nodes;
-        this.replication = replication;
-        this.datacenter = datacenter;
-
-        if (preuser.isPresent()) {
-
-            final Cluster cluster = createCluster(preuser.get(), prepassword.get());
-
-            // Make sure that the keyspace exists before we default to it, ugly double connect but must be created
-            // first before it can be used as a default keyspace.
-            final Session keyspaceSession = cluster.connect();
-            ensureKeyspace(keyspaceSession);
-            keyspaceSession.close();
-
-            // Make sure tables exist in the give given default keyspace
-            final Session createSession = cluster.connect(keyspace);
-            ensureColumnfamilies(createSession, definitions);
-            createSession.close();
-        }
-
-        sessionSingleton = createCluster(user, password).connect(keyspace);
+        this.sessionSingleton = session;
+        this.prepared = prepared;
+        this.profiles = profiles;
+        this.hotPartitions = hotPartitions;
+        this.circuitBreakers = circuitBreakers;
+        this.rateLimits = rateLimits;
+        this.timings = timings;
         mappingManager = new MappingManager(sessionSingleton);
+        clusterUsers = new LinkedHashSet<>();
+        clusterUsers.add(this);
 
-        // Lets be modern and add temporal codecs right away
-        sessionSingleton.getCluster().getConfiguration().getCodecRegistry().register(
-                InstantCodec.instance, LocalDateCodec.instance, LocalTimeCodec.instance
-        );
-
-        Runtime.getRuntime().addShutdownHook(new Thread() {
+        // One hook for the shared cluster, it closes every session still using it.
+        shutdownHook = new Thread() {
             @Override
             public void run() {
                 LOGGER.info("Graceful session close is initiated");
-                sessionSingleton.close();
+                closeAll();
             }
-        });
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * A logical session for another keyspace, sharing the driver session and connection pool of the parent.
+     */
+    private CassandraSessionImpl(final CassandraSessionImpl parent, final String keyspace) {
+
+        this.keyspace = keyspace;
+        this.sessionSingleton = parent.sessionSingleton;
+        this.mappingManager = new MappingManager(new KeyspaceSession(parent.sessionSingleton, keyspace));
+        this.prepared = parent.prepared;
+        this.profiles = parent.profiles;
+        this.hotPartitions = parent.hotPartitions;
+        this.circuitBreakers = parent.circuitBreakers;
+        this.rateLimits = parent.rateLimits;
+        this.timings = parent.timings;
+        this.clusterUsers = parent.clusterUsers;
+        this.shutdownHook = parent.shutdownHook;
+    }
+
+    /**
+     * Key of a statement prepared at startup. The statements are prepared for the keyspace of the session they were
+     * registered with, sessions for other keyspaces prepare their own.
+     */
+    static String preparedKey(final String keyspace, final String query) {
+        return keyspace + '/' + query;
+    }
+
+    /**
+     * Close the sessions sharing the cluster within one shutdown timeout.
+     */
+    private void closeAll() {
+
+        final List<CassandraSessionImpl> sessions;
+        synchronized (clusterUsers) {
+            sessions = new ArrayList<>(clusterUsers);
+        }
+        final long deadline = System.nanoTime() + SHUTDOWN_TIMEOUT.toNanos();
+        for (final CassandraSessionImpl session : sessions) {
+            session.close(Duration.ofNanos(Math.max(0, deadline - System.nanoTime())));
+        }
     }
 
     @Override
     public PreparedStatement prepare(final RegularStatement statement) {
-        return sessionSingleton.prepare(statement);
+        final PreparedStatement warm = prepared.get(preparedKey(keyspace, statement.getQueryString()));
+        return warm != null ? withOptions(warm, statement) : sessionSingleton.prepare(statement);
     }
 
-    @Override
-    public CassandraExecutor getExecutor() {
-        return new CassandraExecutorImpl(sessionSingleton);
+    /**
+     * @return true if the statement was prepared at startup.
+     */
+    boolean isPreparedOnStartup(final RegularStatement statement) {
+        return prepared.containsKey(preparedKey(keyspace, statement.getQueryString()));
     }
 
-    @Override
-    public MappingManager getMappingManager() {
-        return mappingManager;
+    /**
+     * Copy the options of a regular statement to the prepared one, as the driver does when it prepares the statement.
+     * Like the driver instance, the prepared statement is shared by everyone preparing the same query.
+     */
+    private PreparedStatement withOptions(final PreparedStatement warm, final RegularStatement statement) {
+
+        final Configuration configuration = sessionSingleton.getCluster().getConfiguration();
+        final ByteBuffer routingKey = statement.getRoutingKey(configuration.getProtocolOptions().getProtocolVersion(),
+                configuration.getCodecRegistry());
+        if (routingKey != null) {
+            warm.setRoutingKey(routingKey);
+        }
+        if (statement.getConsistencyLevel() != null) {
+            warm.setConsistencyLevel(statement.getConsistencyLevel());
+        }
+        if (statement.getSerialConsistencyLevel() != null) {
+            warm.setSerialConsistencyLevel(statement.getSerialConsistencyLevel());
+        }
+        if (statement.isTracing()) {
+            warm.enableTracing();
+        }
+        if (statement.getRetryPolicy() != null) {
+            warm.setRetryPolicy(statement.getRetryPolicy());
+        }
+        if (statement.getOutgoingPayload() != null) {
+            warm.setOutgoingPayload(statement.getOutgoingPayload());
+        }
+        if (statement.isIdempotent() != null) {
+            warm.setIdempotent(statement.isIdempotent());
+        }
+        return warm;
     }
 
     @Override
-    public void registerCodec(final TypeCodec<?> codec) {
-        sessionSingleton.getCluster().getConfiguration().getCodecRegistry().register(codec);
+    public PreparedStatement prepare(final RegularStatement statement, final String profile) {
+
+        final ExecutionProfile executionProfile = profiles.get(profile);
+        if (executionProfile == null) {
+            throw new PersistenceRuntimeException("Unknown execution profile " + profile);
+        }
+        return new ProfiledPreparedStatement(prepare(statement), executionProfile);
     }
 
     @Override
-    public TupleType createTupleType(final DataType a, final DataType b) {
-        return sessionSingleton.getCluster().getMetadata().newTupleType(a, b);
+    public StartupTimings getStartupTimings() {
+        return timings;
     }
 
-    private Cluster createCluster(final String user, final String password) {
-
-        LOGGER.info("Creating session for {}, replication factor {}, datacenter {}", nodes, replication,
-                datacenter);
+    @Override
+    public CassandraExecutor getExecutor() {
+        return getExecutor(Priority.INTERACTIVE);
+    }
 
-        final Cluster.Builder builder = Cluster.builder()
-                .withCredentials(user, password)
-                .withRetryPolicy(new LoggingRetryPolicy(DowngradingConsistencyRetryPolicy.INSTANCE));
+    @Override
+    public CassandraExecutor getExecutor(final Priority priority) {
+        return new CassandraExecutorImpl(sessionSingleton, keyspace, inFlight, hotPartitions,
+                circuitBreakers, rateLimits, priority);
+    }
 
-        datacenter.ifPresent(dc -> {
-            final DCAwareRoundRobinPolicy.Builder dcAwareBuilder = DCAwareRoundRobinPolicy.builder();
-            dcAwareBuilder.withLocalDc(dc);
-            final DCAwareRoundRobinPolicy dcAwarePolicy = dcAwareBuilder.build();
-            builder.withLoadBalancingPolicy(dcAwarePolicy);
-        });
+    @Override
+    public CassandraSession forKeyspace(final String otherKeyspace) {
 
-        Arrays.stream(nodes.split(",")).map(x -> x.split(":")).forEach(y -> {
-            builder.addContactPoint(y[0].trim());
-            if (y.length == 2) {
-                builder.withPort(Integer.parseInt(y[1]));
+        if (closed.get()) {
+            throw new PersistenceRuntimeException("The session is closed.");
+        }
+        if (sessionSingleton.getCluster().getMetadata().getKeyspace(otherKeyspace) == null) {
+            throw new PersistenceRuntimeException("Keyspace " + otherKeyspace + " does not exist.");
+        }
+        LOGGER.info("Sharing the session of {} with keyspace {}", keyspace, otherKeyspace);
+        synchronized (clusterUsers) {
+            if (clusterUsers.isEmpty()) {
+                throw new PersistenceRuntimeException("The shared cluster is closed.");
             }
-        });
-
-        return builder.build();
+            final CassandraSessionImpl session = new CassandraSessionImpl(this, otherKeyspace);
+            clusterUsers.add(session);
+            return session;
+        }
     }
 
-    private void ensureKeyspace(final Session sess) {
+    @Override
+    public DrainResult close(final Duration timeout) {
 
-        LOGGER.info("Ensuring keyspace");
-        try {
-            sess.execute(String.format(CREATE_KEYSPACE, keyspace, replication));
-        } catch (QueryValidationException | QueryExecutionException e) {
-            LOGGER.error("Failed to create keyspace", e);
-            throw new PersistenceRuntimeException(e);
+        if (!closed.compareAndSet(false, true)) {
+            return new DrainResult(0, 0);
         }
+        LOGGER.info("Draining outstanding operations, waiting at most {}", timeout);
+        final DrainResult result = inFlight.drain(timeout);
+        if (result.getAbandoned() > 0) {
+            LOGGER.warn("Session closed before all work was done, {}", result);
+        } else {
+            LOGGER.info("Session closed, {}", result);
+        }
+        final boolean last;
+        synchronized (clusterUsers) {
+            clusterUsers.remove(this);
+            last = clusterUsers.isEmpty();
+        }
+        if (last) {
+            removeShutdownHook();
+            sessionSingleton.getCluster().close();
+        }
+        return result;
     }
 
-    private void ensureColumnfamilies(final Session sess, final List<? extends ColumnDefinition> definitions) {
-
-        LOGGER.info("Executing table definitions");
+    private void removeShutdownHook() {
         try {
-            definitions.stream().map(ColumnDefinition::getStatements).flatMap(List::stream).forEach(sess::execute);
-        } catch (QueryValidationException | QueryExecutionException e) {
-            LOGGER.error("Failed to create column families from definition", e);
-            throw new PersistenceRuntimeException(e);
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (final IllegalStateException e) {
+            // Closed by the hook itself while the JVM shuts down.
         }
     }
 
-}
\ No newline at end of file
+    @Override
+    public MappingManager getMappingManager() {
+        return mappingManager;
+    }
+
+    @Override
+    public void registerCodec(final TypeCodec<?> codec) {
+        sessionSingleton.getCluster().getConfiguration().getCodecRegistry().register(codec);
+    }
+
+    @Override
+    public TupleType createTupleType(final DataType a, final DataType b) {
+        return sessionSingleton.getCluster().getMetadata().newTupleType(a, b);
+    }
+
+}
@@ -0,0 +1,195 @@
+package se.primenta.common.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Circuit breaker for one table or coordinator host. The outcome of the latest calls is kept in a rolling window, and
+ * the circuit opens when the share of failed or slow calls goes over the thresholds of the {@link CircuitBreakers}.
+ * An open circuit rejects calls until the open time has passed, then lets a few trial calls through in half open
+ * state. The circuit closes if they all succeed and opens again otherwise.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final String name;
+    private final CircuitBreakers config;
+    private final byte[] window;
+    private int position;
+    private int recorded;
+    private int failuresInWindow;
+    private int slowInWindow;
+    private State state = State.CLOSED;
+    private long openUntil;
+    private int trialPermits;
+    private int trialSuccesses;
+
+    private long calls;
+    private long failures;
+    private long slowCalls;
+    private long rejected;
+
+    CircuitBreaker(final String name, final CircuitBreakers config) {
+        this.name = name;
+        this.config = config;
+        window = new byte[config.getWindowSize()];
+    }
+
+    /**
+     * Ask for permission to make a call. A call that is permitted must be followed by {@link #onResult}.
+     *
+     * @return true if the call may be made.
+     */
+    boolean tryAcquire(final long now) {
+
+        final List<CircuitBreakerEvent> events = new ArrayList<>(1);
+        final boolean permitted;
+        synchronized (this) {
+            halfOpenIfDue(now, events);
+            if (state == State.CLOSED) {
+                permitted = true;
+            } else if (state == State.HALF_OPEN && trialPermits > 0) {
+                trialPermits--;
+                permitted = true;
+            } else {
+                rejected++;
+                permitted = false;
+            }
+        }
+        events.forEach(config::fire);
+        return permitted;
+    }
+
+    /**
+     * Give back a permit for a call that was never made, so a trial call of a half open circuit is not lost.
+     */
+    synchronized void cancel() {
+        if (state == State.HALF_OPEN && trialPermits < config.getTrialCalls()) {
+            trialPermits++;
+        }
+    }
+
+    /**
+     * Check without taking a permit if requests are let through, used to route around open hosts.
+     */
+    synchronized boolean allowsRequests(final long now) {
+        return state != State.OPEN || now >= openUntil;
+    }
+
+    void onResult(final boolean failed, final long latencyNanos, final long now) {
+
+        final Optional<Long> slowCallNanos = config.getSlowCallNanos();
+        final boolean slow = !failed && slowCallNanos.isPresent() && latencyNanos >= slowCallNanos.get();
+        final List<CircuitBreakerEvent> events = new ArrayList<>(2);
+        synchronized (this) {
+            calls++;
+            failures += failed ? 1 : 0;
+            slowCalls += slow ? 1 : 0;
+            halfOpenIfDue(now, events);
+            if (state == State.HALF_OPEN) {
+                if (failed || slow) {
+                    events.add(transition(State.OPEN, now));
+                } else if (++trialSuccesses >= config.getTrialCalls()) {
+                    events.add(transition(State.CLOSED, now));
+                }
+            } else if (state == State.CLOSED) {
+                record(failed ? FAILURE : slow ? SLOW : SUCCESS);
+                if (recorded >= config.getMinimumCalls() && (failuresInWindow >= config.getFailureRate() * recorded
+                        || slowInWindow >= config.getSlowCallRate() * recorded)) {
+                    events.add(transition(State.OPEN, now));
+                }
+            }
+            // Results arriving while open are from calls made before the circuit opened.
+        }
+        events.forEach(config::fire);
+    }
+
+    /**
+     * Open circuits go half open when the open time has passed. Host circuits never ask for permits, so the check is
+     * done on results as well.
+     */
+    private void halfOpenIfDue(final long now, final List<CircuitBreakerEvent> events) {
+        if (state == State.OPEN && now >= openUntil) {
+            events.add(transition(State.HALF_OPEN, now));
+        }
+    }
+
+    private void record(final byte outcome) {
+
+        if (recorded == window.length) {
+            failuresInWindow -= window[position] == FAILURE ? 1 : 0;
+            slowInWindow -= window[position] == SLOW ? 1 : 0;
+        } else {
+            recorded++;
+        }
+        window[position] = outcome;
+        failuresInWindow += outcome == FAILURE ? 1 : 0;
+        slowInWindow += outcome == SLOW ? 1 : 0;
+        position = (position + 1) % window.length;
+    }
+
+    private CircuitBreakerEvent transition(final State to, final long now) {
+
+        final State from = state;
+        state = to;
+        if (to == State.OPEN) {
+            openUntil = now + config.getOpenMillis();
+        } else if (to == State.HALF_OPEN) {
+            trialPermits = config.getTrialCalls();
+            trialSuccesses = 0;
+        } else {
+            position = 0;
+            recorded = 0;
+            failuresInWindow = 0;
+            slowInWindow = 0;
+        }
+        return new CircuitBreakerEvent(name, from, to);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return number of calls made through the breaker.
+     */
+    public synchronized long getCalls() {
+        return calls;
+    }
+
+    public synchronized long getFailures() {
+        return failures;
+    }
+
+    public synchronized long getSlowCalls() {
+        return slowCalls;
+    }
+
+    /**
+     * @return number of calls shed while the circuit was open.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s %s, %d calls, %d failed, %d slow, %d rejected", name, state, calls, failures,
+                slowCalls, rejected);
+    }
+}
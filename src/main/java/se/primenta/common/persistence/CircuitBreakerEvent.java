@@ -0,0 +1,40 @@
+package se.primenta.common.persistence;
+
+/**
+ * A state change of a {@link CircuitBreaker}.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class CircuitBreakerEvent {
+
+    private final String breaker;
+    private final CircuitBreaker.State from;
+    private final CircuitBreaker.State to;
+
+    CircuitBreakerEvent(final String breaker, final CircuitBreaker.State from, final CircuitBreaker.State to) {
+        this.breaker = breaker;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * @return name of the breaker, "table:keyspace.table" or "host:address".
+     */
+    public String getBreaker() {
+        return breaker;
+    }
+
+    public CircuitBreaker.State getFrom() {
+        return from;
+    }
+
+    public CircuitBreaker.State getTo() {
+        return to;
+    }
+
+    @Override
+    public String toString() {
+        return "Circuit " + breaker + " " + from + " -> " + to;
+    }
+}
@@ -0,0 +1,87 @@
+package se.primenta.common.persistence;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.ChainableLoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.Lists;
+
+/**
+ * Load balancing policy that moves hosts with an open circuit to the end of the query plan of the child policy, so
+ * they are only tried when all other hosts have failed. The plan of the child policy is returned as it is while no
+ * host circuit is open.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class CircuitBreakerPolicy implements ChainableLoadBalancingPolicy {
+
+    private final LoadBalancingPolicy childPolicy;
+    private final CircuitBreakers breakers;
+
+    CircuitBreakerPolicy(final LoadBalancingPolicy childPolicy, final CircuitBreakers breakers) {
+        this.childPolicy = childPolicy;
+        this.breakers = breakers;
+    }
+
+    @Override
+    public LoadBalancingPolicy getChildPolicy() {
+        return childPolicy;
+    }
+
+    @Override
+    public void init(final Cluster cluster, final Collection<Host> hosts) {
+        childPolicy.init(cluster, hosts);
+    }
+
+    @Override
+    public HostDistance distance(final Host host) {
+        return childPolicy.distance(host);
+    }
+
+    @Override
+    public Iterator<Host> newQueryPlan(final String loggedKeyspace, final Statement statement) {
+
+        final Iterator<Host> childPlan = childPolicy.newQueryPlan(loggedKeyspace, statement);
+        if (!breakers.hasOpenHosts()) {
+            return childPlan;
+        }
+        final long now = System.currentTimeMillis();
+        final List<Host> plan = Lists.newArrayList(childPlan);
+        final List<Host> open = Lists.newArrayList();
+        plan.removeIf(host -> !breakers.forHost(host.getEndPoint()).allowsRequests(now) && open.add(host));
+        plan.addAll(open);
+        return plan.iterator();
+    }
+
+    @Override
+    public void onAdd(final Host host) {
+        childPolicy.onAdd(host);
+    }
+
+    @Override
+    public void onUp(final Host host) {
+        childPolicy.onUp(host);
+    }
+
+    @Override
+    public void onDown(final Host host) {
+        childPolicy.onDown(host);
+    }
+
+    @Override
+    public void onRemove(final Host host) {
+        childPolicy.onRemove(host);
+    }
+
+    @Override
+    public void close() {
+        childPolicy.close();
+    }
+}
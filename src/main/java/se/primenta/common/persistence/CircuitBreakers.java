@@ -0,0 +1,204 @@
+package se.primenta.common.persistence;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.EndPoint;
+import com.datastax.driver.core.Statement;
+
+/**
+ * Circuit breakers of a session, one per table and one per coordinator host, all with the same settings. Register
+ * with {@link CassandraSession.SessionBuilder#withCircuitBreakers(CircuitBreakers)}. Statements to a table with an open
+ * circuit are shed right away, fire and forget statements are handed to the fallback handler and the others fail with
+ * a {@link CircuitOpenException}. Hosts with an open circuit are left out of the query plans as long as other hosts are
+ * available.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class CircuitBreakers {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreakers.class);
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRate;
+    private final Optional<Long> slowCallNanos;
+    private final double slowCallRate;
+    private final long openMillis;
+    private final int trialCalls;
+    private final Optional<Consumer<CircuitBreakerEvent>> listener;
+    private final Optional<Consumer<Statement>> fallback;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final AtomicInteger openHosts = new AtomicInteger();
+
+    private CircuitBreakers(final Builder builder) {
+        windowSize = builder.windowSize;
+        minimumCalls = Math.min(builder.minimumCalls, builder.windowSize);
+        failureRate = builder.failureRate;
+        slowCallNanos = builder.slowCall.map(Duration::toNanos);
+        slowCallRate = builder.slowCallRate;
+        openMillis = builder.open.toMillis();
+        trialCalls = builder.trialCalls;
+        listener = builder.listener;
+        fallback = builder.fallback;
+    }
+
+    CircuitBreaker forTable(final String table) {
+        return breakers.computeIfAbsent("table:" + table, name -> new CircuitBreaker(name, this));
+    }
+
+    CircuitBreaker forHost(final EndPoint host) {
+        return breakers.computeIfAbsent("host:" + host, name -> new CircuitBreaker(name, this));
+    }
+
+    /**
+     * Shed a fire and forget statement to the fallback handler, or drop it with a log if there is none.
+     */
+    void shed(final Statement statement) {
+        if (fallback.isPresent()) {
+            fallback.get().accept(statement);
+        } else {
+            LOGGER.error("Circuit open, dropped {}", statement);
+        }
+    }
+
+    void fire(final CircuitBreakerEvent event) {
+        LOGGER.warn("{}", event);
+        if (event.getBreaker().startsWith("host:")) {
+            openHosts.addAndGet(event.getTo() == CircuitBreaker.State.OPEN ? 1
+                    : event.getFrom() == CircuitBreaker.State.OPEN ? -1 : 0);
+        }
+        listener.ifPresent(l -> l.accept(event));
+    }
+
+    /**
+     * @return all breakers by name, "table:keyspace.table" or "host:address".
+     */
+    public Map<String, CircuitBreaker> getBreakers() {
+        return Collections.unmodifiableMap(breakers);
+    }
+
+    /**
+     * @return true if the circuit of any host has opened and not yet gone half open. A circuit whose open time has
+     *         passed counts until a request or result moves it on.
+     */
+    boolean hasOpenHosts() {
+        return openHosts.get() > 0;
+    }
+
+    int getWindowSize() {
+        return windowSize;
+    }
+
+    int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    double getFailureRate() {
+        return failureRate;
+    }
+
+    Optional<Long> getSlowCallNanos() {
+        return slowCallNanos;
+    }
+
+    double getSlowCallRate() {
+        return slowCallRate;
+    }
+
+    long getOpenMillis() {
+        return openMillis;
+    }
+
+    int getTrialCalls() {
+        return trialCalls;
+    }
+
+    /**
+     * Builder for the circuit breakers.
+     *
+     * @author Sven Wesley
+     *
+     */
+    public static final class Builder {
+
+        private int windowSize = 100;
+        private int minimumCalls = 20;
+        private double failureRate = 0.5;
+        private Optional<Duration> slowCall = Optional.empty();
+        private double slowCallRate = 1;
+        private Duration open = Duration.ofSeconds(5);
+        private int trialCalls = 3;
+        private Optional<Consumer<CircuitBreakerEvent>> listener = Optional.empty();
+        private Optional<Consumer<Statement>> fallback = Optional.empty();
+
+        /**
+         * The number of latest calls the rates are calculated on, and the number of calls needed before the circuit
+         * can open. Defaults to 100 and 20.
+         */
+        public Builder window(final int calls, final int minimum) {
+            windowSize = calls;
+            minimumCalls = minimum;
+            return this;
+        }
+
+        /**
+         * Share of failed calls that opens the circuit. Defaults to 0.5.
+         */
+        public Builder failureRate(final double rate) {
+            failureRate = rate;
+            return this;
+        }
+
+        /**
+         * Calls slower than the duration count as slow, and the share of slow calls that opens the circuit. By
+         * default no call counts as slow, only failures open the circuit.
+         */
+        public Builder slowCalls(final Duration slowerThan, final double rate) {
+            slowCall = Optional.of(slowerThan);
+            slowCallRate = rate;
+            return this;
+        }
+
+        /**
+         * How long the circuit stays open before trial calls are let through, and the number of trial calls that
+         * must succeed to close it. Defaults to 5 seconds and 3 calls.
+         */
+        public Builder openFor(final Duration duration, final int trials) {
+            open = Optional.of(duration).get();
+            trialCalls = trials;
+            return this;
+        }
+
+        /**
+         * Listener for state changes, called on the thread that made the change.
+         */
+        public Builder onStateChange(final Consumer<CircuitBreakerEvent> stateListener) {
+            listener = Optional.of(stateListener);
+            return this;
+        }
+
+        /**
+         * Handler for fire and forget statements that are shed or failed while the circuit is open, for instance a
+         * spool that replays them later. Without a handler they are dropped.
+         */
+        public Builder fallback(final Consumer<Statement> handler) {
+            fallback = Optional.of(handler);
+            return this;
+        }
+
+        public CircuitBreakers build() {
+            return new CircuitBreakers(this);
+        }
+    }
+}
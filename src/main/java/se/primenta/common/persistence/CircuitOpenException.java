@@ -0,0 +1,17 @@
+package se.primenta.common.persistence;
+
+/**
+ * Thrown when a statement is shed because the circuit breaker of its table is open.
+ *
+ * @author Sven Wesley
+ *
+ */
+public class CircuitOpenException extends PersistenceRuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(final String message) {
+        super(message);
+    }
+
+}
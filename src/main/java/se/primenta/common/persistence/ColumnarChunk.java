@@ -0,0 +1,180 @@
+package se.primenta.common.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.datastax.driver.core.DataType;
+
+/**
+ * A chunk of rows decoded into primitive column arrays, one array per column in the declared schema. The arrays are
+ * reused for every chunk of a query and are only valid during the call to the consumer, copy the values that should be
+ * kept. The arrays may be longer than the chunk, only the first {@link #size()} values are set.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class ColumnarChunk {
+
+    /**
+     * The primitive type of a column and the Cassandra types it can be decoded from.
+     */
+    public enum Type {
+
+        /**
+         * bigint, counter and timestamp (milliseconds since epoch).
+         */
+        LONG(DataType.bigint(), DataType.counter(), DataType.timestamp()),
+        DOUBLE(DataType.cdouble()),
+        INT(DataType.cint());
+
+        private final List<DataType> dataTypes;
+
+        Type(final DataType... dataTypes) {
+            this.dataTypes = Arrays.asList(dataTypes);
+        }
+
+        boolean accepts(final DataType dataType) {
+            return dataTypes.contains(dataType);
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Type[] schema;
+    private final Object[] columns;
+    private final BitSet[] nulls;
+    private int capacity;
+    private int size;
+
+    ColumnarChunk(final List<Type> schema) {
+
+        this.schema = schema.toArray(new Type[0]);
+        columns = new Object[this.schema.length];
+        nulls = new BitSet[this.schema.length];
+        for (int i = 0; i < this.schema.length; i++) {
+            nulls[i] = new BitSet();
+        }
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @return number of rows in this chunk.
+     */
+    public int size() {
+        return size;
+    }
+
+    public long[] getLongs(final int column) {
+        return (long[]) column(column, Type.LONG);
+    }
+
+    public double[] getDoubles(final int column) {
+        return (double[]) column(column, Type.DOUBLE);
+    }
+
+    public int[] getInts(final int column) {
+        return (int[]) column(column, Type.INT);
+    }
+
+    /**
+     * Null values are stored as zero in the arrays.
+     *
+     * @return true if the value is null in the result.
+     */
+    public boolean isNull(final int column, final int row) {
+        return nulls[column].get(row);
+    }
+
+    /**
+     * Prepare the chunk for the next page, growing the arrays if the page is larger than the current capacity.
+     */
+    void reset(final int rows) {
+
+        if (rows > capacity) {
+            allocate(Math.max(rows, capacity * 2));
+        }
+        for (final BitSet columnNulls : nulls) {
+            columnNulls.clear();
+        }
+        size = 0;
+    }
+
+    /**
+     * Decode a serialized value straight into the column array, without a codec and without boxing.
+     */
+    void set(final int column, final ByteBuffer value) {
+
+        if (value == null || !value.hasRemaining()) {
+            nulls[column].set(size);
+            setZero(column);
+            return;
+        }
+        final int position = value.position();
+        switch (schema[column]) {
+        case LONG:
+            ((long[]) columns[column])[size] = value.getLong(position);
+            break;
+        case DOUBLE:
+            ((double[]) columns[column])[size] = value.getDouble(position);
+            break;
+        case INT:
+            ((int[]) columns[column])[size] = value.getInt(position);
+            break;
+        }
+    }
+
+    void endRow() {
+        size++;
+    }
+
+    Type getType(final int column) {
+        return schema[column];
+    }
+
+    int getColumnCount() {
+        return schema.length;
+    }
+
+    private void setZero(final int column) {
+
+        switch (schema[column]) {
+        case LONG:
+            ((long[]) columns[column])[size] = 0L;
+            break;
+        case DOUBLE:
+            ((double[]) columns[column])[size] = 0d;
+            break;
+        case INT:
+            ((int[]) columns[column])[size] = 0;
+            break;
+        }
+    }
+
+    private Object column(final int column, final Type type) {
+
+        if (schema[column] != type) {
+            throw new PersistenceRuntimeException("Column " + column + " is " + schema[column] + ", not " + type);
+        }
+        return columns[column];
+    }
+
+    private void allocate(final int newCapacity) {
+
+        for (int i = 0; i < schema.length; i++) {
+            switch (schema[i]) {
+            case LONG:
+                columns[i] = new long[newCapacity];
+                break;
+            case DOUBLE:
+                columns[i] = new double[newCapacity];
+                break;
+            case INT:
+                columns[i] = new int[newCapacity];
+                break;
+            }
+        }
+        capacity = newCapacity;
+    }
+}
@@ -0,0 +1,37 @@
+package se.primenta.common.persistence;
+
+/**
+ * Outcome of a graceful session close, telling how much of the outstanding work was completed before the deadline.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class DrainResult {
+
+    private final long completed;
+    private final long abandoned;
+
+    DrainResult(final long completed, final long abandoned) {
+        this.completed = completed;
+        this.abandoned = abandoned;
+    }
+
+    /**
+     * @return number of in-flight operations, including retries, that finished while draining.
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return number of operations still running when the deadline passed.
+     */
+    public long getAbandoned() {
+        return abandoned;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d operations completed, %d abandoned", completed, abandoned);
+    }
+}
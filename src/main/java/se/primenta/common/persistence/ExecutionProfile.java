@@ -0,0 +1,112 @@
+package se.primenta.common.persistence;
+
+import java.util.Optional;
+
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.policies.RetryPolicy;
+
+/**
+ * A named set of execution options for statements, registered on the
+ * {@link CassandraSession.SessionBuilder#withExecutionProfile(String, ExecutionProfile)} and bound to a statement when
+ * it is prepared with {@link CassandraSession#prepare(com.datastax.driver.core.RegularStatement, String)}. Options that
+ * are not set fall back to the defaults of the session.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class ExecutionProfile {
+
+    private final Optional<ConsistencyLevel> consistency;
+    private final Optional<ConsistencyLevel> serialConsistency;
+    private final Optional<Integer> readTimeoutMillis;
+    private final Optional<Integer> fetchSize;
+    private final Optional<Boolean> idempotent;
+    private final Optional<RetryPolicy> retryPolicy;
+
+    private ExecutionProfile(final Builder builder) {
+        consistency = builder.consistency;
+        serialConsistency = builder.serialConsistency;
+        readTimeoutMillis = builder.readTimeoutMillis;
+        fetchSize = builder.fetchSize;
+        idempotent = builder.idempotent;
+        retryPolicy = builder.retryPolicy;
+    }
+
+    public Optional<ConsistencyLevel> getConsistency() {
+        return consistency;
+    }
+
+    public Optional<ConsistencyLevel> getSerialConsistency() {
+        return serialConsistency;
+    }
+
+    public Optional<Integer> getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    public Optional<Integer> getFetchSize() {
+        return fetchSize;
+    }
+
+    public Optional<Boolean> getIdempotent() {
+        return idempotent;
+    }
+
+    public Optional<RetryPolicy> getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Builder for an execution profile.
+     *
+     * @author Sven Wesley
+     *
+     */
+    public static final class Builder {
+
+        private Optional<ConsistencyLevel> consistency = Optional.empty();
+        private Optional<ConsistencyLevel> serialConsistency = Optional.empty();
+        private Optional<Integer> readTimeoutMillis = Optional.empty();
+        private Optional<Integer> fetchSize = Optional.empty();
+        private Optional<Boolean> idempotent = Optional.empty();
+        private Optional<RetryPolicy> retryPolicy = Optional.empty();
+
+        public Builder withConsistency(final ConsistencyLevel level) {
+            consistency = Optional.of(level);
+            return this;
+        }
+
+        public Builder withSerialConsistency(final ConsistencyLevel level) {
+            serialConsistency = Optional.of(level);
+            return this;
+        }
+
+        public Builder withReadTimeoutMillis(final int millis) {
+            readTimeoutMillis = Optional.of(millis);
+            return this;
+        }
+
+        public Builder withFetchSize(final int rows) {
+            fetchSize = Optional.of(rows);
+            return this;
+        }
+
+        /**
+         * Mark the statements as idempotent or not. Statements that are not idempotent are never retried, neither by
+         * the driver nor by the executor.
+         */
+        public Builder idempotent(final boolean isIdempotent) {
+            idempotent = Optional.of(isIdempotent);
+            return this;
+        }
+
+        public Builder withRetryPolicy(final RetryPolicy policy) {
+            retryPolicy = Optional.of(policy);
+            return this;
+        }
+
+        public ExecutionProfile build() {
+            return new ExecutionProfile(this);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package se.primenta.common.persistence;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frequently requested partition found by the {@link HotPartitionDetector}. Counts are estimates from sampled
+ * traffic.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class HotPartition {
+
+    private final String table;
+    private final ByteBuffer routingKey;
+    private final double requestsPerSecond;
+    private final double share;
+
+    HotPartition(final String table, final ByteBuffer routingKey, final double requestsPerSecond,
+            final double share) {
+        this.table = table;
+        this.routingKey = routingKey;
+        this.requestsPerSecond = requestsPerSecond;
+        this.share = share;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return the serialized partition key, as used by the driver for routing.
+     */
+    public ByteBuffer getRoutingKey() {
+        return routingKey.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return estimated requests per second to the partition.
+     */
+    public double getRequestsPerSecond() {
+        return requestsPerSecond;
+    }
+
+    /**
+     * @return the partition's share of all requests to the table, between 0 and 1.
+     */
+    public double getShare() {
+        return share;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Hot partition in %s, %.1f requests/s, %.1f%% of the table", table, requestsPerSecond,
+                share * 100);
+    }
+}
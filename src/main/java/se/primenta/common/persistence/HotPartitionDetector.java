@@ -0,0 +1,263 @@
+package se.primenta.common.persistence;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Finds hot partitions from the traffic of the executors. A sample of the bound statements is counted per table in a
+ * Count-Min sketch over a sliding window of two periods, and the most frequent partitions are kept as heavy hitter
+ * candidates. A listener can be called when a partition takes more than a given share of the requests to its table.
+ * Register the detector with {@link CassandraSession.SessionBuilder#detectHotPartitions(HotPartitionDetector)}.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class HotPartitionDetector {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+    private static final int CANDIDATES_PER_TOP = 4;
+    private static final int MIN_SAMPLES = 100;
+
+    private final double sampleRate;
+    private final long windowMillis;
+    private final int topK;
+    private final double threshold;
+    private final Optional<Consumer<HotPartition>> listener;
+    private final ConcurrentMap<String, TableSketch> tables = new ConcurrentHashMap<>();
+
+    private HotPartitionDetector(final Builder builder) {
+        sampleRate = builder.sampleRate;
+        windowMillis = builder.window.toMillis();
+        topK = builder.topK;
+        threshold = builder.threshold;
+        listener = builder.listener;
+    }
+
+    /**
+     * @return true if the current request should be counted.
+     */
+    boolean sample() {
+        return sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    /**
+     * Count a sampled request to a partition.
+     */
+    void record(final String table, final ByteBuffer routingKey) {
+        record(table, routingKey, System.currentTimeMillis());
+    }
+
+    void record(final String table, final ByteBuffer routingKey, final long now) {
+        final Optional<HotPartition> hot = tables.computeIfAbsent(table, TableSketch::new).add(routingKey, now);
+        hot.ifPresent(h -> listener.ifPresent(l -> l.accept(h)));
+    }
+
+    /**
+     * @return the keyspace qualified tables that have had traffic, "keyspace.table".
+     */
+    public Set<String> getTables() {
+        return Collections.unmodifiableSet(tables.keySet());
+    }
+
+    /**
+     * The most requested partitions of a table over the current and the previous window, most requested first.
+     *
+     * @param table
+     *            keyspace qualified, "keyspace.table".
+     * @return up to top K partitions.
+     */
+    public List<HotPartition> getTopPartitions(final String table) {
+        final TableSketch sketch = tables.get(table);
+        return sketch == null ? Collections.emptyList() : sketch.top(System.currentTimeMillis());
+    }
+
+    private static int index(final int hash, final int row) {
+
+        // Murmur3 finalizer, a different seed per row.
+        int h = hash + row * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & (WIDTH - 1);
+    }
+
+    /**
+     * Sketch and heavy hitter candidates of one table. Only sampled requests get here, so a lock per table is cheap.
+     */
+    private final class TableSketch {
+
+        private final String table;
+        private long[][] current = new long[DEPTH][WIDTH];
+        private long[][] previous;
+        private long currentTotal;
+        private long previousTotal;
+        private long windowStart;
+        private final Map<ByteBuffer, Long> candidates = new HashMap<>();
+        private final Set<ByteBuffer> reported = new HashSet<>();
+
+        TableSketch(final String table) {
+            this.table = table;
+        }
+
+        synchronized Optional<HotPartition> add(final ByteBuffer key, final long now) {
+
+            rotate(now);
+            final int hash = key.hashCode();
+            for (int row = 0; row < DEPTH; row++) {
+                current[row][index(hash, row)]++;
+            }
+            currentTotal++;
+
+            final long count = estimate(key);
+            if (candidates.containsKey(key)) {
+                candidates.put(key, count);
+            } else {
+                candidates.put(copy(key), count);
+                if (candidates.size() > topK * CANDIDATES_PER_TOP) {
+                    candidates.entrySet().stream().min(Map.Entry.comparingByValue()).map(Map.Entry::getKey)
+                            .ifPresent(candidates::remove);
+                }
+            }
+
+            final long total = currentTotal + previousTotal;
+            if (listener.isPresent() && total >= MIN_SAMPLES && count >= threshold * total
+                    && !reported.contains(key)) {
+                final ByteBuffer hot = copy(key);
+                reported.add(hot);
+                return Optional.of(hotPartition(hot, count, total, now));
+            }
+            return Optional.empty();
+        }
+
+        synchronized List<HotPartition> top(final long now) {
+
+            rotate(now);
+            final long total = Math.max(1, currentTotal + previousTotal);
+            return candidates.keySet().stream().map(k -> hotPartition(k, estimate(k), total, now))
+                    .sorted(Comparator.comparingDouble(HotPartition::getRequestsPerSecond).reversed()).limit(topK)
+                    .collect(Collectors.toList());
+        }
+
+        private long estimate(final ByteBuffer key) {
+
+            final int hash = key.hashCode();
+            long min = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                final int i = index(hash, row);
+                min = Math.min(min, current[row][i] + (previous == null ? 0 : previous[row][i]));
+            }
+            return min;
+        }
+
+        private void rotate(final long now) {
+
+            if (windowStart == 0) {
+                windowStart = now;
+                return;
+            }
+            final long elapsed = now - windowStart;
+            if (elapsed < windowMillis) {
+                return;
+            }
+            // A window without traffic in between leaves nothing to slide over.
+            previous = elapsed < 2 * windowMillis ? current : null;
+            previousTotal = elapsed < 2 * windowMillis ? currentTotal : 0;
+            current = new long[DEPTH][WIDTH];
+            currentTotal = 0;
+            windowStart = now;
+            reported.clear();
+            candidates.replaceAll((k, v) -> estimate(k));
+            candidates.values().removeIf(v -> v == 0);
+        }
+
+        private HotPartition hotPartition(final ByteBuffer key, final long count, final long total, final long now) {
+
+            final long millis = now - windowStart + (previous == null ? 0 : windowMillis);
+            final double seconds = Math.max(1, millis) / 1000d;
+            return new HotPartition(table, key, count / sampleRate / seconds, (double) count / total);
+        }
+
+        private ByteBuffer copy(final ByteBuffer key) {
+            final ByteBuffer copy = ByteBuffer.allocate(key.remaining());
+            copy.put(key.duplicate()).flip();
+            return copy;
+        }
+    }
+
+    /**
+     * Builder for a hot partition detector.
+     *
+     * @author Sven Wesley
+     *
+     */
+    public static final class Builder {
+
+        private double sampleRate = 0.01;
+        private Duration window = Duration.ofSeconds(10);
+        private int topK = 10;
+        private double threshold = 1;
+        private Optional<Consumer<HotPartition>> listener = Optional.empty();
+
+        /**
+         * Share of the requests that are counted, between 0 and 1. Defaults to 1%.
+         */
+        public Builder sampling(final double rate) {
+            if (rate <= 0 || rate > 1) {
+                throw new IllegalArgumentException("Sample rate must be in (0, 1], was " + rate);
+            }
+            sampleRate = rate;
+            return this;
+        }
+
+        /**
+         * Length of a window, the counts cover the current and the previous window. Defaults to 10 seconds.
+         */
+        public Builder window(final Duration length) {
+            window = Optional.of(length).get();
+            return this;
+        }
+
+        /**
+         * Number of partitions reported per table. Defaults to 10.
+         */
+        public Builder topK(final int k) {
+            topK = k;
+            return this;
+        }
+
+        /**
+         * Call the listener, at most once per window and partition, when a partition takes more than the share of
+         * the requests to its table.
+         *
+         * @param share
+         *            between 0 and 1.
+         * @param hotPartitionListener
+         *            called on the requesting thread and should return quickly.
+         */
+        public Builder alertAbove(final double share, final Consumer<HotPartition> hotPartitionListener) {
+            threshold = share;
+            listener = Optional.of(hotPartitionListener);
+            return this;
+        }
+
+        public HotPartitionDetector build() {
+            return new HotPartitionDetector(this);
+        }
+    }
+}
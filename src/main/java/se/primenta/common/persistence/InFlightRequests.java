@@ -0,0 +1,82 @@
+package se.primenta.common.persistence;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Book keeping of operations in progress, shared by all executors of a session. When the session is closing new work
+ * is rejected and the operations already accepted, including their retries, are waited for.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class InFlightRequests {
+
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile boolean closing = false;
+
+    /**
+     * Register the start of an operation.
+     *
+     * @throws PersistenceRuntimeException
+     *             if the session is closing.
+     */
+    void begin() {
+        inFlight.incrementAndGet();
+        if (closing) {
+            end();
+            throw new PersistenceRuntimeException("The session is closing, no new work is accepted.");
+        }
+    }
+
+    /**
+     * Register the end of an operation, successful or not.
+     */
+    void end() {
+        if (inFlight.decrementAndGet() == 0 && closing) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return operations in progress.
+     */
+    long count() {
+        return inFlight.get();
+    }
+
+    boolean isClosing() {
+        return closing;
+    }
+
+    /**
+     * Stop accepting new work and wait for the outstanding operations until they are done or the timeout passes.
+     *
+     * @param timeout
+     *            the longest time to wait.
+     * @return how many operations were completed and abandoned.
+     */
+    DrainResult drain(final Duration timeout) {
+
+        closing = true;
+        final long deadline = System.nanoTime() + timeout.toNanos();
+        final long outstanding = inFlight.get();
+        synchronized (this) {
+            long remaining = deadline - System.nanoTime();
+            while (inFlight.get() > 0 && remaining > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        }
+        final long abandoned = Math.max(0, inFlight.get());
+        return new DrainResult(Math.max(0, outstanding - abandoned), abandoned);
+    }
+}
@@ -0,0 +1,193 @@
+package se.primenta.common.persistence;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.datastax.driver.core.CloseFuture;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The driver session of a {@link CassandraSession#forKeyspace(String)} session. Requests go to the shared session,
+ * only the logged keyspace differs so a mapper of the keyspace resolves unqualified entities to it. Query strings run
+ * in the keyspace of the shared session, so those naming a table without a keyspace are rejected rather than run
+ * against the wrong one. The shared session is closed by the session that owns it, closing this one does nothing.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class KeyspaceSession implements Session {
+
+    /**
+     * A table named by a data statement, group 1 is set when it is keyspace qualified.
+     */
+    private static final Pattern TABLE = Pattern.compile(
+            "\\b(?:from|into|update|truncate)\\s+(?:\"[^\"]+\"|\\w+)(\\s*\\.)?", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern USE = Pattern.compile("^\\s*use\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The completed future the driver hands out when there is nothing to close, its factory is package private.
+     */
+    private static final CloseFuture CLOSED = closedFuture();
+
+    private final Session delegate;
+    private final String keyspace;
+
+    KeyspaceSession(final Session delegate, final String keyspace) {
+        this.delegate = delegate;
+        this.keyspace = keyspace;
+    }
+
+    @Override
+    public String getLoggedKeyspace() {
+        return keyspace;
+    }
+
+    @Override
+    public Session init() {
+        // The shared session is connected before it is handed out.
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<Session> initAsync() {
+        return Futures.<Session> immediateFuture(this);
+    }
+
+    @Override
+    public ResultSet execute(final String query) {
+        return delegate.execute(qualified(query));
+    }
+
+    @Override
+    public ResultSet execute(final String query, final Object... values) {
+        return delegate.execute(qualified(query), values);
+    }
+
+    @Override
+    public ResultSet execute(final String query, final Map<String, Object> values) {
+        return delegate.execute(qualified(query), values);
+    }
+
+    @Override
+    public ResultSet execute(final Statement statement) {
+        return delegate.execute(qualified(statement));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(final String query) {
+        return delegate.executeAsync(qualified(query));
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(final String query, final Object... values) {
+        return delegate.executeAsync(qualified(query), values);
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(final String query, final Map<String, Object> values) {
+        return delegate.executeAsync(qualified(query), values);
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(final Statement statement) {
+        return delegate.executeAsync(qualified(statement));
+    }
+
+    @Override
+    public PreparedStatement prepare(final String query) {
+        return delegate.prepare(qualified(query));
+    }
+
+    @Override
+    public PreparedStatement prepare(final RegularStatement statement) {
+        return delegate.prepare(qualified(statement));
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(final String query) {
+        return delegate.prepareAsync(qualified(query));
+    }
+
+    @Override
+    public ListenableFuture<PreparedStatement> prepareAsync(final RegularStatement statement) {
+        return delegate.prepareAsync(qualified(statement));
+    }
+
+    @Override
+    public CloseFuture closeAsync() {
+        return CLOSED;
+    }
+
+    @Override
+    public void close() {
+        // The shared session is closed by the session that owns it.
+    }
+
+    @Override
+    public boolean isClosed() {
+        return delegate.isClosed();
+    }
+
+    @Override
+    public Cluster getCluster() {
+        return delegate.getCluster();
+    }
+
+    @Override
+    public State getState() {
+        return delegate.getState();
+    }
+
+    /**
+     * A plain query string is run as it is written, only those naming their tables with a keyspace can be trusted to
+     * reach the tables of this keyspace.
+     */
+    private String qualified(final String query) {
+
+        if (USE.matcher(query).find()) {
+            throw new IllegalArgumentException("Keyspace " + keyspace + " can not be changed, was " + query);
+        }
+        final Matcher matcher = TABLE.matcher(query);
+        while (matcher.find()) {
+            if (matcher.group(1) == null) {
+                throw new IllegalArgumentException("Statement must be keyspace qualified in keyspace session "
+                        + keyspace + ", was " + query);
+            }
+        }
+        return query;
+    }
+
+    private <T extends Statement> T qualified(final T statement) {
+
+        if (statement instanceof SimpleStatement) {
+            qualified(((SimpleStatement) statement).getQueryString());
+        }
+        return statement;
+    }
+
+    /**
+     * The driver version is pinned in build.gradle, the factory is not part of its public API.
+     */
+    private static CloseFuture closedFuture() {
+
+        try {
+            final Method immediate = CloseFuture.class.getDeclaredMethod("immediateFuture");
+            immediate.setAccessible(true);
+            return (CloseFuture) immediate.invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            throw new IllegalStateException("Driver version without CloseFuture.immediateFuture()", e);
+        }
+    }
+}
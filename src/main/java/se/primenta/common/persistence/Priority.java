@@ -0,0 +1,26 @@
+package se.primenta.common.persistence;
+
+/**
+ * Priority class of the statements of an executor, see {@link CassandraSession#getExecutor(Priority)}. With
+ * {@link RateLimits} registered on the session the classes share the in-flight slots by their weights.
+ *
+ * @author Sven Wesley
+ *
+ */
+public enum Priority {
+
+    /**
+     * User facing requests, the default.
+     */
+    INTERACTIVE,
+
+    /**
+     * Bulk work that should finish in reasonable time, such as imports.
+     */
+    BATCH,
+
+    /**
+     * Work that can wait, such as backfills and repairs.
+     */
+    BACKGROUND
+}
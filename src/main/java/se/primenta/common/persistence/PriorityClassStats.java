@@ -0,0 +1,83 @@
+package se.primenta.common.persistence;
+
+/**
+ * Snapshot of the queue of a priority class, see {@link RateLimits#getStats()}.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class PriorityClassStats {
+
+    private final Priority priority;
+    private final int queueDepth;
+    private final int inFlight;
+    private final long submitted;
+    private final long dispatched;
+    private final long rejected;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    PriorityClassStats(final Priority priority, final int queueDepth, final int inFlight, final long submitted,
+            final long dispatched, final long rejected, final long totalWaitNanos, final long maxWaitNanos) {
+        this.priority = priority;
+        this.queueDepth = queueDepth;
+        this.inFlight = inFlight;
+        this.submitted = submitted;
+        this.dispatched = dispatched;
+        this.rejected = rejected;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return statements waiting for a table token or an in-flight slot.
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return statements of the class that hold an in-flight slot.
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public long getDispatched() {
+        return dispatched;
+    }
+
+    /**
+     * @return statements rejected with a {@link ThrottledException}, since the queue was full or since they waited
+     *         longer than the max queue wait.
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return mean time from submission to dispatch in milliseconds.
+     */
+    public double getMeanWaitMillis() {
+        return dispatched == 0 ? 0 : totalWaitNanos / 1e6 / dispatched;
+    }
+
+    public double getMaxWaitMillis() {
+        return maxWaitNanos / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d queued, %d in flight, %d submitted, %d dispatched, %d rejected, "
+                + "wait mean %.1f ms max %.1f ms", priority, queueDepth, inFlight, submitted, dispatched, rejected,
+                getMeanWaitMillis(), getMaxWaitMillis());
+    }
+}
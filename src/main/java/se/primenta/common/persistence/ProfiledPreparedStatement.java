@@ -0,0 +1,213 @@
+package se.primenta.common.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedId;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.policies.RetryPolicy;
+
+/**
+ * A prepared statement with an {@link ExecutionProfile} bound to it. The profile is resolved once when the statement is
+ * prepared and every bound statement gets the options of the profile. The driver prepared statement is shared by all
+ * preparations of the same query and is never changed. The setters of this statement override the profile only for
+ * the statements bound from it, so the same query can be used with several profiles.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class ProfiledPreparedStatement implements PreparedStatement {
+
+    private final PreparedStatement delegate;
+    private final int readTimeoutMillis;
+    private final int fetchSize;
+    private volatile ConsistencyLevel consistency;
+    private volatile ConsistencyLevel serialConsistency;
+    private volatile RetryPolicy retryPolicy;
+    private volatile Boolean idempotent;
+    private volatile boolean tracing;
+    private volatile ByteBuffer routingKey;
+    private volatile Map<String, ByteBuffer> outgoingPayload;
+
+    ProfiledPreparedStatement(final PreparedStatement delegate, final ExecutionProfile profile) {
+        this.delegate = delegate;
+        consistency = profile.getConsistency().orElse(delegate.getConsistencyLevel());
+        serialConsistency = profile.getSerialConsistency().orElse(delegate.getSerialConsistencyLevel());
+        retryPolicy = profile.getRetryPolicy().orElse(delegate.getRetryPolicy());
+        idempotent = profile.getIdempotent().orElse(delegate.isIdempotent());
+        tracing = delegate.isTracing();
+        routingKey = delegate.getRoutingKey();
+        outgoingPayload = delegate.getOutgoingPayload();
+        // Unset options keep the driver defaults, MIN_VALUE for the read timeout and zero for the fetch size.
+        readTimeoutMillis = profile.getReadTimeoutMillis().orElse(Integer.MIN_VALUE);
+        fetchSize = profile.getFetchSize().orElse(0);
+    }
+
+    @Override
+    public BoundStatement bind(final Object... values) {
+        return bind().bind(values);
+    }
+
+    /**
+     * The bound statement copies the options of this statement through its getters, the routing key is read from
+     * this statement when the query has no routing key variables.
+     */
+    @Override
+    public BoundStatement bind() {
+
+        final BoundStatement bound = new BoundStatement(this);
+        if (readTimeoutMillis != Integer.MIN_VALUE) {
+            bound.setReadTimeoutMillis(readTimeoutMillis);
+        }
+        if (fetchSize > 0) {
+            bound.setFetchSize(fetchSize);
+        }
+        return bound;
+    }
+
+    @Override
+    public ColumnDefinitions getVariables() {
+        return delegate.getVariables();
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(final ByteBuffer routingKey) {
+        this.routingKey = routingKey;
+        return this;
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(final ByteBuffer... routingKeyComponents) {
+        routingKey = composeRoutingKey(routingKeyComponents);
+        return this;
+    }
+
+    /**
+     * A routing key of several components in the composite format of Cassandra, each component prefixed with its
+     * length and followed by a zero byte. A single component is the key as is.
+     */
+    static ByteBuffer composeRoutingKey(final ByteBuffer... components) {
+
+        if (components.length == 1) {
+            return components[0];
+        }
+        int size = 0;
+        for (final ByteBuffer component : components) {
+            size += 2 + component.remaining() + 1;
+        }
+        final ByteBuffer composite = ByteBuffer.allocate(size);
+        for (final ByteBuffer component : components) {
+            composite.putShort((short) component.remaining());
+            composite.put(component.duplicate());
+            composite.put((byte) 0);
+        }
+        composite.flip();
+        return composite;
+    }
+
+    @Override
+    public ByteBuffer getRoutingKey() {
+        return routingKey;
+    }
+
+    @Override
+    public PreparedStatement setConsistencyLevel(final ConsistencyLevel consistency) {
+        this.consistency = consistency;
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getConsistencyLevel() {
+        return consistency;
+    }
+
+    @Override
+    public PreparedStatement setSerialConsistencyLevel(final ConsistencyLevel serialConsistency) {
+        this.serialConsistency = serialConsistency;
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getSerialConsistencyLevel() {
+        return serialConsistency;
+    }
+
+    @Override
+    public String getQueryString() {
+        return delegate.getQueryString();
+    }
+
+    @Override
+    public String getQueryKeyspace() {
+        return delegate.getQueryKeyspace();
+    }
+
+    @Override
+    public PreparedStatement enableTracing() {
+        tracing = true;
+        return this;
+    }
+
+    @Override
+    public PreparedStatement disableTracing() {
+        tracing = false;
+        return this;
+    }
+
+    @Override
+    public boolean isTracing() {
+        return tracing;
+    }
+
+    @Override
+    public PreparedStatement setRetryPolicy(final RetryPolicy policy) {
+        retryPolicy = policy;
+        return this;
+    }
+
+    @Override
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    @Override
+    public PreparedId getPreparedId() {
+        return delegate.getPreparedId();
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getIncomingPayload() {
+        return delegate.getIncomingPayload();
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getOutgoingPayload() {
+        return outgoingPayload;
+    }
+
+    @Override
+    public PreparedStatement setOutgoingPayload(final Map<String, ByteBuffer> payload) {
+        outgoingPayload = payload;
+        return this;
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return delegate.getCodecRegistry();
+    }
+
+    @Override
+    public PreparedStatement setIdempotent(final Boolean idempotent) {
+        this.idempotent = idempotent;
+        return this;
+    }
+
+    @Override
+    public Boolean isIdempotent() {
+        return idempotent;
+    }
+}
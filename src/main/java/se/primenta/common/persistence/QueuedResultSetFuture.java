@@ -0,0 +1,63 @@
+package se.primenta.common.persistence;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Future of a statement waiting in the {@link RateLimits} queue. It follows the future of the driver once the
+ * statement is sent, and cancelling it before that keeps the statement from being sent.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class QueuedResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+    @Override
+    protected boolean setFuture(final ListenableFuture<? extends ResultSet> future) {
+        return super.setFuture(future);
+    }
+
+    @Override
+    protected boolean setException(final Throwable throwable) {
+        return super.setException(throwable);
+    }
+
+    @Override
+    public ResultSet getUninterruptibly() {
+        try {
+            return Uninterruptibles.getUninterruptibly(this);
+        } catch (final ExecutionException e) {
+            throw propagate(e);
+        }
+    }
+
+    @Override
+    public ResultSet getUninterruptibly(final long timeout, final TimeUnit unit) throws TimeoutException {
+        try {
+            return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+        } catch (final ExecutionException e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Driver exceptions are copied to get the stack trace of the calling thread, as the driver futures do.
+     */
+    private static RuntimeException propagate(final ExecutionException e) {
+        if (e.getCause() instanceof DriverException) {
+            throw ((DriverException) e.getCause()).copy();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+        }
+        throw new PersistenceRuntimeException("Statement failed", e.getCause());
+    }
+}
@@ -0,0 +1,436 @@
+package se.primenta.common.persistence;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Rate limits and priority scheduling of the executors of a session. Register with
+ * {@link CassandraSession.SessionBuilder#withRateLimits(RateLimits)} and get an executor per priority class with
+ * {@link CassandraSession#getExecutor(Priority)}. A statement to a table with a rate takes a token from the bucket of
+ * the table, and waits until the token is refilled if the bucket is empty. It is then queued by its priority class. A
+ * weighted fair scheduler hands out the in-flight slots of the session, so every class with waiting statements gets
+ * slots in proportion to its weight. A number of slots can be reserved for interactive statements, so batch and
+ * background work never takes the last of them.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class RateLimits {
+
+    private final int maxInFlight;
+    private final int reservedForInteractive;
+    private final int maxQueued;
+    private final long maxQueueWaitNanos;
+    private final Map<String, TokenBucket> buckets;
+    private final Ticker ticker;
+    private final Optional<Scheduler> timer;
+    private final Map<Priority, ClassQueue> queues = new EnumMap<>(Priority.class);
+    private final AtomicInteger dispatching = new AtomicInteger();
+    private final Object lock = new Object();
+    private int inFlight;
+    private double virtualTime;
+
+    private RateLimits(final Builder builder) {
+
+        maxInFlight = builder.maxInFlight;
+        reservedForInteractive = builder.reservedForInteractive;
+        maxQueued = builder.maxQueued;
+        maxQueueWaitNanos = builder.maxQueueWait.toNanos();
+        ticker = builder.ticker;
+        final long now = ticker.read();
+        final Map<String, TokenBucket> tables = new HashMap<>();
+        builder.rates.forEach((table, rate) -> tables.put(table, new TokenBucket(rate[0], (int) rate[1], now)));
+        buckets = Collections.unmodifiableMap(tables);
+        if (builder.scheduler.isPresent()) {
+            timer = builder.scheduler;
+        } else if (buckets.isEmpty()) {
+            timer = Optional.empty();
+        } else {
+            final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("rate-limits-%d").setDaemon(true).build());
+            timer = Optional.of((task, delayNanos) -> executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS));
+        }
+        for (final Priority priority : Priority.values()) {
+            queues.put(priority, new ClassQueue(priority, builder.weights.get(priority)));
+        }
+    }
+
+    /**
+     * Ask for an in-flight slot. The slot must be given back with {@link #release(Priority)} when the statement is
+     * done.
+     *
+     * @param table
+     *            of the statement, if known.
+     * @return a future that completes when the statement may be sent.
+     * @throws ThrottledException
+     *             if the queue of the class is full.
+     */
+    ListenableFuture<Void> acquire(final Priority priority, final Optional<String> table) {
+        return reserve(priority, table);
+    }
+
+    /**
+     * Ask for an in-flight slot and block until it is given, at most the max queue wait. The slot must be given back
+     * with {@link #release(Priority)} when the statement is done.
+     *
+     * @param table
+     *            of the statement, if known.
+     * @throws ThrottledException
+     *             if the queue of the class is full or no slot was given in time.
+     */
+    void await(final Priority priority, final Optional<String> table) {
+
+        final Ticket ticket = reserve(priority, table);
+        try {
+            Uninterruptibles.getUninterruptibly(ticket, maxQueueWaitNanos, TimeUnit.NANOSECONDS);
+        } catch (final TimeoutException e) {
+            if (cancel(ticket)) {
+                throw new ThrottledException(String.format(
+                        "Max queue wait passed, %s statement waited %d ms for a slot", priority,
+                        TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos)));
+            }
+            // Admitted while timing out, the slot is taken.
+        } catch (final ExecutionException e) {
+            throw new PersistenceRuntimeException(e.getCause());
+        }
+    }
+
+    private Ticket reserve(final Priority priority, final Optional<String> table) {
+
+        final ClassQueue queue = queues.get(priority);
+        final long now = ticker.read();
+        synchronized (lock) {
+            if (queue.waiting >= maxQueued) {
+                queue.rejected++;
+                throw new ThrottledException(String.format("Queue full, %s queue has %d statements waiting", priority,
+                        queue.waiting));
+            }
+            queue.waiting++;
+            queue.submitted++;
+        }
+        final Ticket ticket = new Ticket(queue, now);
+        final long delay = table.map(buckets::get).map(b -> b.reserve(now)).orElse(0L);
+        if (delay > 0) {
+            timer.get().schedule(() -> enqueue(ticket), delay);
+        } else {
+            enqueue(ticket);
+        }
+        return ticket;
+    }
+
+    /**
+     * Give back the slot of a statement and let the next one in.
+     */
+    void release(final Priority priority) {
+        synchronized (lock) {
+            inFlight--;
+            queues.get(priority).inFlight--;
+        }
+        dispatch();
+    }
+
+    /**
+     * Take a ticket out of its queue after a timeout. A ticket that was already dispatched gives back its slot when it
+     * finds itself cancelled.
+     *
+     * @return false if the ticket had already been admitted.
+     */
+    private boolean cancel(final Ticket ticket) {
+
+        if (!ticket.cancel(false)) {
+            return false;
+        }
+        synchronized (lock) {
+            if (!ticket.dispatched) {
+                ticket.queue.tickets.remove(ticket);
+                ticket.queue.waiting--;
+                ticket.queue.rejected++;
+            }
+        }
+        return true;
+    }
+
+    private void enqueue(final Ticket ticket) {
+
+        synchronized (lock) {
+            if (ticket.isCancelled()) {
+                // Timed out waiting for its token, counted by the cancel.
+                return;
+            }
+            final ClassQueue queue = ticket.queue;
+            // A class that has been idle starts at the current virtual time, it does not save up a share.
+            if (queue.tickets.isEmpty()) {
+                queue.pass = Math.max(queue.pass, virtualTime);
+            }
+            queue.tickets.add(ticket);
+        }
+        dispatch();
+    }
+
+    /**
+     * Admit waiting statements while there are slots. Only one thread dispatches at a time, and statements admitted
+     * by a completing statement are sent from the dispatching loop instead of recursively.
+     */
+    private void dispatch() {
+
+        if (dispatching.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            admit().forEach(ticket -> {
+                if (!ticket.admit()) {
+                    release(ticket.queue.priority);
+                }
+            });
+            missed = dispatching.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private List<Ticket> admit() {
+
+        final List<Ticket> admitted = new ArrayList<>();
+        final long now = ticker.read();
+        synchronized (lock) {
+            while (true) {
+                // The class with the lowest pass goes next, interactive first on ties.
+                ClassQueue next = null;
+                for (final ClassQueue queue : queues.values()) {
+                    if (!queue.tickets.isEmpty() && inFlight < slotsFor(queue.priority)
+                            && (next == null || queue.pass < next.pass)) {
+                        next = queue;
+                    }
+                }
+                if (next == null) {
+                    return admitted;
+                }
+                final Ticket ticket = next.tickets.poll();
+                if (ticket.isCancelled()) {
+                    // Counted by the cancel.
+                    continue;
+                }
+                ticket.dispatched = true;
+                virtualTime = next.pass;
+                next.pass += next.stride;
+                next.waiting--;
+                next.inFlight++;
+                next.dispatched++;
+                inFlight++;
+                final long wait = now - ticket.submitted;
+                next.totalWaitNanos += wait;
+                next.maxWaitNanos = Math.max(next.maxWaitNanos, wait);
+                admitted.add(ticket);
+            }
+        }
+    }
+
+    private int slotsFor(final Priority priority) {
+        return priority == Priority.INTERACTIVE ? maxInFlight : maxInFlight - reservedForInteractive;
+    }
+
+    /**
+     * @return queue depth and wait times per priority class.
+     */
+    public Map<Priority, PriorityClassStats> getStats() {
+
+        final Map<Priority, PriorityClassStats> stats = new EnumMap<>(Priority.class);
+        synchronized (lock) {
+            queues.forEach((priority, q) -> stats.put(priority, new PriorityClassStats(priority, q.waiting,
+                    q.inFlight, q.submitted, q.dispatched, q.rejected, q.totalWaitNanos, q.maxWaitNanos)));
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * @return statements of all classes that hold an in-flight slot.
+     */
+    public int getInFlight() {
+        synchronized (lock) {
+            return inFlight;
+        }
+    }
+
+    /**
+     * Runs a task after a delay, the timer of the statements waiting for a table token.
+     */
+    interface Scheduler {
+
+        void schedule(Runnable task, long delayNanos);
+    }
+
+    /**
+     * Queue and counters of a priority class, guarded by the lock of the scheduler.
+     */
+    private static final class ClassQueue {
+
+        private final Priority priority;
+        private final double stride;
+        private final ArrayDeque<Ticket> tickets = new ArrayDeque<>();
+        private double pass;
+        private int waiting;
+        private int inFlight;
+        private long submitted;
+        private long dispatched;
+        private long rejected;
+        private long totalWaitNanos;
+        private long maxWaitNanos;
+
+        ClassQueue(final Priority priority, final int weight) {
+            this.priority = priority;
+            stride = 1d / weight;
+        }
+    }
+
+    /**
+     * A statement waiting for a slot.
+     */
+    private static final class Ticket extends AbstractFuture<Void> {
+
+        private final ClassQueue queue;
+        private final long submitted;
+        // Guarded by the lock of the scheduler.
+        private boolean dispatched;
+
+        Ticket(final ClassQueue queue, final long submitted) {
+            this.queue = queue;
+            this.submitted = submitted;
+        }
+
+        /**
+         * @return false if the ticket was cancelled and the slot must be given back.
+         */
+        boolean admit() {
+            return set(null);
+        }
+    }
+
+    /**
+     * Builder for the rate limits.
+     *
+     * @author Sven Wesley
+     *
+     */
+    public static final class Builder {
+
+        private final Map<String, double[]> rates = new HashMap<>();
+        private final Map<Priority, Integer> weights = new EnumMap<>(Priority.class);
+        private int maxInFlight = 1024;
+        private int reservedForInteractive = 64;
+        private int maxQueued = 10000;
+        private Duration maxQueueWait = Duration.ofSeconds(10);
+        private Ticker ticker = Ticker.systemTicker();
+        private Optional<Scheduler> scheduler = Optional.empty();
+
+        public Builder() {
+            weights.put(Priority.INTERACTIVE, 8);
+            weights.put(Priority.BATCH, 2);
+            weights.put(Priority.BACKGROUND, 1);
+        }
+
+        /**
+         * Limit the statements to a table.
+         *
+         * @param table
+         *            keyspace qualified name as in the schema, "keyspace.table".
+         * @param perSecond
+         *            statements per second over time.
+         * @param burst
+         *            statements that may be sent at once after a quiet period.
+         */
+        public Builder table(final String table, final double perSecond, final int burst) {
+            if (table.indexOf('.') < 1) {
+                throw new IllegalArgumentException("Table must be keyspace qualified, was " + table);
+            }
+            if (perSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("Rate and burst must be positive for " + table);
+            }
+            rates.put(Optional.of(table).get(), new double[] { perSecond, burst });
+            return this;
+        }
+
+        /**
+         * Share of the slots a class gets when all classes have statements waiting. Defaults to 8 for interactive, 2
+         * for batch and 1 for background.
+         */
+        public Builder weight(final Priority priority, final int weight) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("Weight must be positive, was " + weight);
+            }
+            weights.put(Optional.of(priority).get(), weight);
+            return this;
+        }
+
+        /**
+         * Statements in flight on the session, and the slots among them only interactive statements may use. Defaults
+         * to 1024 and 64.
+         */
+        public Builder maxInFlight(final int slots, final int reserved) {
+            if (slots < 1 || reserved < 0 || reserved >= slots) {
+                throw new IllegalArgumentException("Reserved slots must be fewer than " + slots);
+            }
+            maxInFlight = slots;
+            reservedForInteractive = reserved;
+            return this;
+        }
+
+        /**
+         * Statements waiting per class before new ones are rejected with a {@link ThrottledException}. Defaults to
+         * 10000.
+         */
+        public Builder maxQueued(final int statements) {
+            maxQueued = statements;
+            return this;
+        }
+
+        /**
+         * Time a synchronous call or fire and forget waits for a slot before it is rejected with a
+         * {@link ThrottledException}. Defaults to 10 seconds.
+         */
+        public Builder maxQueueWait(final Duration wait) {
+            if (wait.isNegative()) {
+                throw new IllegalArgumentException("Max queue wait can not be negative, was " + wait);
+            }
+            maxQueueWait = wait;
+            return this;
+        }
+
+        /**
+         * Time source of the token buckets and the wait times, for tests.
+         */
+        Builder ticker(final Ticker source) {
+            ticker = source;
+            return this;
+        }
+
+        /**
+         * Timer of the statements waiting for a table token, for tests.
+         */
+        Builder scheduler(final Scheduler timer) {
+            scheduler = Optional.of(timer);
+            return this;
+        }
+
+        public RateLimits build() {
+            return new RateLimits(this);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package se.primenta.common.persistence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.PoolingOptions;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.exceptions.QueryExecutionException;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.DowngradingConsistencyRetryPolicy;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.datastax.driver.core.policies.LoggingRetryPolicy;
+import com.datastax.driver.core.policies.Policies;
+import com.datastax.driver.extras.codecs.jdk8.InstantCodec;
+import com.datastax.driver.extras.codecs.jdk8.LocalDateCodec;
+import com.datastax.driver.extras.codecs.jdk8.LocalTimeCodec;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Runs the startup of a {@link CassandraSession}. The keyspace and table definitions are ensured first, then the
+ * session connects and the prepare of the registered statements and the warm up of the connections to the local hosts
+ * run in parallel. The session is handed out when all phases are done.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class SessionStarter {
+
+    private final String user;
+    private final String password;
+    private final String keyspace;
+    private final String nodes;
+    private final String replication;
+    private final Optional<String> datacenter;
+    private final Optional<String> preuser;
+    private final Optional<String> prepassword;
+    private final List<? extends ColumnDefinition> definitions;
+    private final List<? extends RegularStatement> statements;
+    private final Optional<Integer> connectionsPerHost;
+    private final Map<String, ExecutionProfile> profiles;
+    private final Optional<HotPartitionDetector> hotPartitions;
+    private final Optional<CircuitBreakers> circuitBreakers;
+    private final Optional<RateLimits> rateLimits;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionStarter.class);
+
+    private static final String CREATE_KEYSPACE = "CREATE KEYSPACE IF NOT EXISTS %s WITH REPLICATION = %s";
+
+    private static final String WARM_UP = "SELECT release_version FROM system.local";
+
+    SessionStarter(final String user,
+            final String password,
+            final String keyspace,
+            final String nodes,
+            final String replication,
+            final Optional<String> datacenter,
+            final Optional<String> preuser,
+            final Optional<String> prepassword,
+            final List<? extends ColumnDefinition> definitions,
+            final List<? extends RegularStatement> statements,
+            final Optional<Integer> connectionsPerHost,
+            final Map<String, ExecutionProfile> profiles,
+            final Optional<HotPartitionDetector> hotPartitions,
+            final Optional<CircuitBreakers> circuitBreakers,
+            final Optional<RateLimits> rateLimits) {
+
+        this.user = user;
+        this.password = password;
+        this.keyspace = keyspace;
+        this.nodes = nodes;
+        this.replication = replication;
+        this.datacenter = datacenter;
+        this.preuser = preuser;
+        this.prepassword = prepassword;
+        this.definitions = definitions;
+        this.statements = statements;
+        this.connectionsPerHost = connectionsPerHost;
+        this.profiles = new HashMap<>(profiles);
+        this.hotPartitions = hotPartitions;
+        this.circuitBreakers = circuitBreakers;
+        this.rateLimits = rateLimits;
+    }
+
+    /**
+     * Start the session without blocking the caller.
+     *
+     * @return the session when it is connected and warmed up.
+     */
+    CompletionStage<CassandraSession> start() {
+
+        final StartupTimings timings = new StartupTimings();
+        final AtomicReference<Cluster> cluster = new AtomicReference<>();
+        final ExecutorService startup = Executors.newSingleThreadExecutor();
+
+        final CompletableFuture<CassandraSession> future = CompletableFuture.supplyAsync(() -> {
+            preprocess(timings);
+            cluster.set(createCluster(user, password));
+            return cluster.get();
+        }, startup).thenCompose(c -> connect(c, timings)).thenCompose(session -> prepare(session, timings)
+                .thenCombine(warmUp(session, timings), (prepared, ignore) -> new CassandraSessionImpl(keyspace,
+                        session, prepared, profiles, hotPartitions, circuitBreakers, rateLimits, timings)));
+
+        return future.whenComplete((session, t) -> {
+            startup.shutdown();
+            if (t == null) {
+                timings.ready();
+                LOGGER.info("{}", timings);
+            } else {
+                LOGGER.error("Failed to start the session", t);
+                Optional.ofNullable(cluster.get()).ifPresent(Cluster::close);
+            }
+        });
+    }
+
+    /**
+     * Start the session and wait for it to be ready.
+     *
+     * @return the session
+     */
+    CassandraSession startAndWait() {
+
+        try {
+            return start().toCompletableFuture().join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new PersistenceRuntimeException(e.getCause());
+        }
+    }
+
+    private void preprocess(final StartupTimings timings) {
+
+        if (!preuser.isPresent()) {
+            return;
+        }
+        final long started = System.nanoTime();
+        final Cluster cluster = createCluster(preuser.get(), prepassword.get());
+        try {
+            // Make sure that the keyspace exists before we default to it, ugly double connect but must be created
+            // first before it can be used as a default keyspace.
+            final Session keyspaceSession = cluster.connect();
+            ensureKeyspace(keyspaceSession);
+            keyspaceSession.close();
+
+            // Make sure tables exist in the give given default keyspace
+            final Session createSession = cluster.connect(keyspace);
+            ensureColumnfamilies(createSession, definitions);
+            createSession.close();
+        } finally {
+            cluster.close();
+        }
+        timings.record("preprocess", started);
+    }
+
+    private CompletableFuture<Session> connect(final Cluster cluster, final StartupTimings timings) {
+
+        final long started = System.nanoTime();
+        return toCompletable(cluster.connectAsync(keyspace)).thenApply(session -> {
+            // Lets be modern and add temporal codecs right away
+            cluster.getConfiguration().getCodecRegistry().register(
+                    InstantCodec.instance, LocalDateCodec.instance, LocalTimeCodec.instance
+            );
+            timings.record("connect", started);
+            return session;
+        });
+    }
+
+    private CompletableFuture<Map<String, PreparedStatement>> prepare(final Session session,
+            final StartupTimings timings) {
+
+        final long started = System.nanoTime();
+        final List<CompletableFuture<PreparedStatement>> prepares = statements.stream()
+                .map(s -> toCompletable(session.prepareAsync(s))).collect(Collectors.toList());
+        return CompletableFuture.allOf(prepares.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            timings.record("prepare", started);
+            LOGGER.info("Prepared {} statements", prepares.size());
+            return prepares.stream().map(CompletableFuture::join)
+                    .collect(Collectors.toMap(p -> CassandraSessionImpl.preparedKey(keyspace, p.getQueryString()),
+                            Function.identity(), (a, b) -> a));
+        });
+    }
+
+    /**
+     * The pools are opened with their core connections when the session connects. Send as many concurrent requests to
+     * every local host as it has core connections, the pool lends each request its least busy connection so every
+     * connection is used once before the session is handed out.
+     */
+    private CompletableFuture<Void> warmUp(final Session session, final StartupTimings timings) {
+
+        final long started = System.nanoTime();
+        final LoadBalancingPolicy policy = session.getCluster().getConfiguration().getPolicies()
+                .getLoadBalancingPolicy();
+        final List<Host> hosts = session.getCluster().getMetadata().getAllHosts().stream().filter(Host::isUp)
+                .filter(h -> policy.distance(h) == HostDistance.LOCAL).collect(Collectors.toList());
+        final int connections = session.getCluster().getConfiguration().getPoolingOptions()
+                .getCoreConnectionsPerHost(HostDistance.LOCAL);
+        final List<CompletableFuture<?>> pings = hosts.stream()
+                .flatMap(h -> IntStream.range(0, connections)
+                        .mapToObj(i -> toCompletable(session.executeAsync(new SimpleStatement(WARM_UP).setHost(h)))))
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(pings.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            timings.record("warmup", started);
+            hosts.forEach(h -> LOGGER.info("{} connections open to {}", session.getState().getOpenConnections(h), h));
+        });
+    }
+
+    private Cluster createCluster(final String user, final String password) {
+
+        LOGGER.info("Creating session for {}, replication factor {}, datacenter {}", nodes, replication,
+                datacenter);
+
+        final Cluster.Builder builder = Cluster.builder()
+                .withCredentials(user, password)
+                .withRetryPolicy(new LoggingRetryPolicy(DowngradingConsistencyRetryPolicy.INSTANCE));
+
+        final LoadBalancingPolicy loadBalancing = datacenter.map(dc -> {
+            final DCAwareRoundRobinPolicy.Builder dcAwareBuilder = DCAwareRoundRobinPolicy.builder();
+            dcAwareBuilder.withLocalDc(dc);
+            return (LoadBalancingPolicy) dcAwareBuilder.build();
+        }).orElseGet(Policies::defaultLoadBalancingPolicy);
+        builder.withLoadBalancingPolicy(circuitBreakers
+                .<LoadBalancingPolicy> map(breakers -> new CircuitBreakerPolicy(loadBalancing, breakers))
+                .orElse(loadBalancing));
+
+        // Open all connections up front instead of growing the pool when the first requests arrive.
+        connectionsPerHost.ifPresent(connections -> builder.withPoolingOptions(new PoolingOptions()
+                .setConnectionsPerHost(HostDistance.LOCAL, connections, connections)));
+
+        Arrays.stream(nodes.split(",")).map(x -> x.split(":")).forEach(y -> {
+            builder.addContactPoint(y[0].trim());
+            if (y.length == 2) {
+                builder.withPort(Integer.parseInt(y[1]));
+            }
+        });
+
+        return builder.build();
+    }
+
+    private void ensureKeyspace(final Session sess) {
+
+        LOGGER.info("Ensuring keyspace");
+        try {
+            sess.execute(String.format(CREATE_KEYSPACE, keyspace, replication));
+        } catch (QueryValidationException | QueryExecutionException e) {
+            LOGGER.error("Failed to create keyspace", e);
+            throw new PersistenceRuntimeException(e);
+        }
+    }
+
+    private void ensureColumnfamilies(final Session sess, final List<? extends ColumnDefinition> definitions) {
+
+        LOGGER.info("Executing table definitions");
+        try {
+            definitions.stream().map(ColumnDefinition::getStatements).flatMap(List::stream).forEach(sess::execute);
+        } catch (QueryValidationException | QueryExecutionException e) {
+            LOGGER.error("Failed to create column families from definition", e);
+            throw new PersistenceRuntimeException(e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> toCompletable(final ListenableFuture<T> listenable) {
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        Futures.addCallback(listenable, new FutureCallback<T>() {
+
+            @Override
+            public void onSuccess(final T result) {
+                future.complete(result);
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+}
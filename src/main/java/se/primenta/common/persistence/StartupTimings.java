@@ -0,0 +1,47 @@
+package se.primenta.common.persistence;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time spent in each phase of the session startup, in the order the phases finished. Phases that run in parallel are
+ * measured separately, so the total can be less than the sum of the phases.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class StartupTimings {
+
+    private final long started = System.nanoTime();
+    private final Map<String, Duration> phases = new LinkedHashMap<>();
+    private volatile Duration total = Duration.ZERO;
+
+    synchronized void record(final String phase, final long phaseStarted) {
+        phases.put(phase, Duration.ofNanos(System.nanoTime() - phaseStarted));
+    }
+
+    void ready() {
+        total = Duration.ofNanos(System.nanoTime() - started);
+    }
+
+    /**
+     * @return duration per startup phase.
+     */
+    public synchronized Map<String, Duration> getPhases() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(phases));
+    }
+
+    /**
+     * @return the time from the start until the session was ready.
+     */
+    public Duration getTotal() {
+        return total;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Session ready in " + total.toMillis() + " ms " + phases;
+    }
+}
@@ -0,0 +1,108 @@
+package se.primenta.common.persistence;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Handle for a running full table scan started by {@link CassandraExecutor#scan}. The scan is split into token ranges
+ * that are read in parallel, the handle tracks the progress and can be used to wait for the scan to complete.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class TableScan {
+
+    private final String table;
+    private final int totalSplits;
+    private final AtomicInteger completedSplits = new AtomicInteger();
+    private final AtomicInteger failedSplits = new AtomicInteger();
+    private final AtomicLong rows = new AtomicLong();
+    private volatile ListenableFuture<List<Long>> future;
+
+    TableScan(final String table, final int totalSplits) {
+        this.table = table;
+        this.totalSplits = totalSplits;
+    }
+
+    void onRow() {
+        rows.incrementAndGet();
+    }
+
+    void onSplitCompleted() {
+        completedSplits.incrementAndGet();
+    }
+
+    void onSplitFailed() {
+        failedSplits.incrementAndGet();
+    }
+
+    void setFuture(final ListenableFuture<List<Long>> future) {
+        this.future = future;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return the number of token range splits the table was divided into.
+     */
+    public int getTotalSplits() {
+        return totalSplits;
+    }
+
+    /**
+     * @return the number of splits that have been read to the end.
+     */
+    public int getCompletedSplits() {
+        return completedSplits.get();
+    }
+
+    /**
+     * @return the number of splits that failed after all retries.
+     */
+    public int getFailedSplits() {
+        return failedSplits.get();
+    }
+
+    /**
+     * @return the number of rows handed to the consumer so far.
+     */
+    public long getRowCount() {
+        return rows.get();
+    }
+
+    public boolean isDone() {
+        return future.isDone();
+    }
+
+    /**
+     * Block until all splits are read.
+     *
+     * @return the total number of rows read.
+     * @throws PersistenceRuntimeException
+     *             if any of the splits failed after its retries.
+     */
+    public long await() {
+        try {
+            Uninterruptibles.getUninterruptibly(future);
+            return rows.get();
+        } catch (final ExecutionException e) {
+            throw new PersistenceRuntimeException("Scan of " + table + " failed.", e.getCause());
+        } catch (final CancellationException e) {
+            throw new PersistenceRuntimeException("Scan of " + table + " was cancelled.", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Scan of %s, %d/%d splits done, %d failed, %d rows", table, completedSplits.get(),
+                totalSplits, failedSplits.get(), rows.get());
+    }
+}
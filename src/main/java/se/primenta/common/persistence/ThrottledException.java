@@ -0,0 +1,18 @@
+package se.primenta.common.persistence;
+
+/**
+ * Thrown when a statement is rejected by the rate limits, either because the queue of its priority class is full or
+ * because it waited longer than the max queue wait for a slot. The message tells which.
+ *
+ * @author Sven Wesley
+ *
+ */
+public class ThrottledException extends PersistenceRuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ThrottledException(final String message) {
+        super(message);
+    }
+
+}
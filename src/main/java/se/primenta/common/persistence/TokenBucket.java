@@ -0,0 +1,40 @@
+package se.primenta.common.persistence;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket of a table. Tokens are reserved ahead of time, a caller that finds the bucket empty takes a token that
+ * is not yet refilled and waits until it is.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class TokenBucket {
+
+    private final double nanosPerToken;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    TokenBucket(final double perSecond, final int burst, final long now) {
+        nanosPerToken = TimeUnit.SECONDS.toNanos(1) / perSecond;
+        this.burst = burst;
+        tokens = burst;
+        refilledAt = now;
+    }
+
+    /**
+     * Take a token.
+     *
+     * @return nanoseconds to wait before the token may be used, 0 if it is available now.
+     */
+    synchronized long reserve(final long now) {
+
+        if (now > refilledAt) {
+            tokens = Math.min(burst, tokens + (now - refilledAt) / nanosPerToken);
+            refilledAt = now;
+        }
+        tokens--;
+        return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * nanosPerToken);
+    }
+}
@@ -0,0 +1,54 @@
+package com.datastax.driver.core;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import com.google.common.hash.Hashing;
+
+/**
+ * Access to the package private metadata constructors of the driver, needed by the in-memory session to create
+ * prepared statements and coordinator hosts without a cluster. The constructors are not part of the public API of the
+ * driver, which is why build.gradle pins the driver version.
+ *
+ * @author Sven Wesley
+ *
+ */
+public final class FakeDriver {
+
+    private FakeDriver() {
+    }
+
+    public static ColumnDefinitions columnDefinitions(final String keyspace, final String table,
+            final List<String> names, final List<DataType> types, final CodecRegistry codecRegistry) {
+
+        final ColumnDefinitions.Definition[] definitions = new ColumnDefinitions.Definition[names.size()];
+        for (int i = 0; i < definitions.length; i++) {
+            definitions[i] = new ColumnDefinitions.Definition(keyspace, table, names.get(i), types.get(i));
+        }
+        return new ColumnDefinitions(definitions, codecRegistry);
+    }
+
+    public static PreparedId preparedId(final String query, final ColumnDefinitions variables,
+            final ColumnDefinitions result, final int[] routingKeyIndexes, final ProtocolVersion protocolVersion) {
+
+        final byte[] digest = Hashing.md5().hashString(query, StandardCharsets.UTF_8).asBytes();
+        return new PreparedId(new PreparedId.PreparedMetadata(MD5Digest.wrap(digest), variables),
+                new PreparedId.PreparedMetadata(MD5Digest.wrap(digest), result), routingKeyIndexes, protocolVersion);
+    }
+
+    /**
+     * A host of a cluster that is never connected, to report as the coordinator of results.
+     */
+    public static Host host(final Cluster cluster, final EndPoint endPoint) {
+        return new Host(endPoint, new ConvictionPolicy.DefaultConvictionPolicy.Factory(), cluster.manager);
+    }
+
+    public static EndPoint endPoint(final InetSocketAddress address) {
+        return new TranslatedAddressEndPoint(address);
+    }
+
+    public static CloseFuture closed() {
+        return CloseFuture.immediateFuture();
+    }
+}
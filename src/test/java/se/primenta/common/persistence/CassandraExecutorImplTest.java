@@ -0,0 +1,168 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.InvalidTypeException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+
+public class CassandraExecutorImplTest {
+
+    private FakeSession session;
+    private InFlightRequests inFlight;
+    private RateLimits rateLimits;
+    private CassandraExecutor executor;
+
+    @Before
+    public void init() {
+        final LinkedHashMap<String, DataType> columns = new LinkedHashMap<>();
+        columns.put("id", DataType.cint());
+        columns.put("test", DataType.text());
+        session = new FakeSession("sim").createTable("testexecutor", columns);
+        inFlight = new InFlightRequests();
+        rateLimits = new RateLimits.Builder().build();
+        executor = new CassandraExecutorImpl(session, "sim", inFlight, Optional.empty(), Optional.empty(),
+                Optional.of(rateLimits), Priority.INTERACTIVE);
+    }
+
+    @After
+    public void close() {
+        session.close();
+    }
+
+    /**
+     * A value without a codec is thrown by the driver before the statement is sent.
+     */
+    private static Statement unserializable() {
+        return new SimpleStatement("INSERT INTO testexecutor (id, test) VALUES (?, ?)", 1, new Object());
+    }
+
+    @Test
+    public void synchronousThrowEndsInFlight() {
+
+        try {
+            executor.fireAndForget(unserializable());
+            fail("Expected a type error");
+        } catch (final InvalidTypeException e) {
+            // expected
+        }
+        try {
+            executor.executeAsync(unserializable());
+            fail("Expected a type error");
+        } catch (final InvalidTypeException e) {
+            // expected
+        }
+        try {
+            executor.execute(unserializable());
+            fail("Expected a type error");
+        } catch (final InvalidTypeException e) {
+            // expected
+        }
+        assertEquals(0, inFlight.count());
+        assertEquals(0, rateLimits.getInFlight());
+    }
+
+    @Test
+    public void failingRoutingKeyEndsInFlight() {
+
+        final CassandraExecutor tracking = new CassandraExecutorImpl(session, "sim", inFlight,
+                Optional.of(new HotPartitionDetector.Builder().sampling(1).build()), Optional.empty(),
+                Optional.of(rateLimits), Priority.INTERACTIVE);
+        final Statement statement = new SimpleStatement("SELECT * FROM testexecutor WHERE id = 1") {
+            @Override
+            public ByteBuffer getRoutingKey(final ProtocolVersion protocolVersion, final CodecRegistry codecRegistry) {
+                throw new IllegalStateException("No routing key");
+            }
+        };
+        try {
+            tracking.executeConditional(statement);
+            fail("Expected the routing key to fail");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        try {
+            tracking.executeColumnar(statement, Collections.emptyList(), chunk -> {
+            });
+            fail("Expected the routing key to fail");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+        assertEquals(0, inFlight.count());
+        assertEquals(0, rateLimits.getInFlight());
+    }
+
+    @Test
+    public void writersQueuedOnPartitionHoldNoSlots() throws Exception {
+
+        final RateLimits limits = new RateLimits.Builder().maxInFlight(4, 0).maxQueueWait(Duration.ofMillis(50))
+                .build();
+        final CassandraExecutor limited = new CassandraExecutorImpl(session, "sim", inFlight, Optional.empty(),
+                Optional.empty(), Optional.of(limits), Priority.INTERACTIVE);
+        session.withLatency(LatencyDistribution.fixed(Duration.ofMillis(200)));
+        final PreparedStatement insert = session
+                .prepare("INSERT INTO testexecutor (id, test) VALUES (?, ?) IF NOT EXISTS");
+        final ExecutorService writers = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<CasResult>> writes = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                writes.add(writers.submit(() -> limited.executeConditional(insert.bind(1, "hot"))));
+            }
+            Thread.sleep(50);
+
+            // Only the writer holding the partition lock has a slot, the read gets one of the others.
+            limited.execute(session.prepare("SELECT * FROM testexecutor WHERE id = ?").bind(2));
+            for (final Future<CasResult> write : writes) {
+                write.get();
+            }
+        } finally {
+            writers.shutdown();
+        }
+        assertEquals(0, limits.getInFlight());
+    }
+
+    @Test
+    public void conditionalTimeoutRetriedOnlyWhenIdempotent() {
+
+        session.withWriteTimeouts(1);
+        final PreparedStatement insert = session
+                .prepare("INSERT INTO testexecutor (id, test) VALUES (?, ?) IF NOT EXISTS");
+        try {
+            executor.executeConditional(insert.bind(1, "first").setIdempotent(false));
+            fail("Expected a timeout");
+        } catch (final PersistenceRuntimeException e) {
+            assertTrue(e.getCause() instanceof WriteTimeoutException);
+        }
+        assertEquals(1, session.getRequests());
+
+        try {
+            executor.executeConditional(insert.bind(1, "first"));
+            fail("Expected a timeout");
+        } catch (final PersistenceRuntimeException e) {
+            assertTrue(e.getCause() instanceof WriteTimeoutException);
+        }
+        assertEquals(1 + CassandraExecutorImpl.MAX_STORE_RETRIES, session.getRequests());
+        assertEquals(0, inFlight.count());
+    }
+}
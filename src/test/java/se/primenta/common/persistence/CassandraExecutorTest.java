@@ -1,18 +1,26 @@
 package se.primenta.common.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.SimpleStatement;
@@ -34,6 +42,11 @@ public class CassandraExecutorTest extends CassandraTestBase {
     public static void init() {
 
         session = new CassandraSession.SessionBuilder("localhost:" + getCassandraPort())
+                .withExecutionProfile("critical", new ExecutionProfile.Builder()
+                        .withConsistency(ConsistencyLevel.ONE)
+                        .withFetchSize(10)
+                        .idempotent(false)
+                        .build())
                 .usingKeyspace("executortest")
                 .andReplication("{'class': 'SimpleStrategy', 'replication_factor': '1'}")
                 .asUser("cassandra")
@@ -137,4 +150,95 @@ public class CassandraExecutorTest extends CassandraTestBase {
         assertEquals(instant, exec.execute(new SimpleStatement("select t from testtime where id = 1")).one()
                 .getTimestamp(0).toInstant());
     }
+
+    @Test
+    public void scanFullTable() {
+
+        final CassandraExecutor exec = session.getExecutor();
+        exec.execute(new SimpleStatement("create table testscan(id int, seq int, test text, primary key (id, seq))"));
+        for (int i = 0; i < 100; i++) {
+            exec.execute(new SimpleStatement("insert into testscan(id, seq, test) values (?, ?, 'x')", i % 10, i));
+        }
+
+        final AtomicInteger sum = new AtomicInteger();
+        final TableScan scan = exec.scan("testscan", Arrays.asList("seq"), 8, row -> sum.addAndGet(row.getInt(0)));
+        assertEquals(100, scan.await());
+        assertEquals(4950, sum.get());
+        assertEquals(scan.getTotalSplits(), scan.getCompletedSplits());
+        assertTrue(scan.getTotalSplits() >= 8);
+    }
+
+    @Test
+    public void scanWithFailingConsumer() {
+
+        final CassandraExecutor exec = session.getExecutor();
+        exec.execute(new SimpleStatement("create table testscanfail(id int primary key, test text)"));
+        for (int i = 0; i < 10; i++) {
+            exec.execute(new SimpleStatement("insert into testscanfail(id, test) values (?, 'x')", i));
+        }
+
+        final TableScan scan = exec.scan("testscanfail", Collections.emptyList(), 4, row -> {
+            throw new IllegalArgumentException("Rejected row " + row.getInt("id"));
+        });
+        try {
+            scan.await();
+            fail("Expected the scan to fail");
+        } catch (final PersistenceRuntimeException e) {
+            // expected
+        }
+        assertTrue(scan.getFailedSplits() > 0);
+    }
+
+    @Test
+    public void executeWithProfile() {
+
+        final CassandraExecutor exec = session.getExecutor();
+        final BoundStatement bound = session
+                .prepare(new SimpleStatement("insert into testexecutor(id, test) values (?, ?)"), "critical")
+                .bind(77, "profiled");
+        assertEquals(ConsistencyLevel.ONE, bound.getConsistencyLevel());
+        assertEquals(10, bound.getFetchSize());
+        assertEquals(Boolean.FALSE, bound.isIdempotent());
+
+        exec.execute(bound);
+        assertEquals(1, exec.execute(new SimpleStatement("select * from testexecutor where id = 77")).all().size());
+    }
+
+    @Test
+    public void executeColumnar() {
+
+        final CassandraExecutor exec = session.getExecutor();
+        exec.execute(new SimpleStatement(
+                "create table testseries(id int, t timestamp, v double, primary key (id, t))"));
+        for (int i = 0; i < 250; i++) {
+            exec.execute(new SimpleStatement("insert into testseries(id, t, v) values (1, ?, ?)", new Date(i), 0.5));
+        }
+
+        final AtomicInteger chunks = new AtomicInteger();
+        final double[] sum = new double[1];
+        final long rows = exec.executeColumnar(
+                new SimpleStatement("select t, v from testseries where id = 1").setFetchSize(100),
+                Arrays.asList(ColumnarChunk.Type.LONG, ColumnarChunk.Type.DOUBLE), chunk -> {
+                    chunks.incrementAndGet();
+                    for (int i = 0; i < chunk.size(); i++) {
+                        sum[0] += chunk.getDoubles(1)[i];
+                    }
+                });
+        assertEquals(250, rows);
+        assertEquals(3, chunks.get());
+        assertEquals(125, sum[0], 0);
+    }
+
+    @Test
+    public void executeConditional() {
+
+        final CassandraExecutor exec = session.getExecutor();
+        final PreparedStatement insert = session
+                .prepare(new SimpleStatement("insert into testexecutor(id, test) values (?, ?) if not exists"));
+
+        assertTrue(exec.executeConditional(insert.bind(500, "first")).wasApplied());
+        final CasResult second = exec.executeConditional(insert.bind(500, "second"));
+        assertFalse(second.wasApplied());
+        assertEquals("first", second.getCurrentValues().get().getString("test"));
+    }
 }
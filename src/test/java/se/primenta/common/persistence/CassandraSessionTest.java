@@ -1,13 +1,17 @@
 package se.primenta.common.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import org.junit.Test;
 
+import com.datastax.driver.core.ConsistencyLevel;
 import com.datastax.driver.core.SimpleStatement;
 import com.datastax.driver.core.Statement;
 
@@ -125,4 +129,76 @@ public class CassandraSessionTest extends CassandraTestBase {
 
     }
 
+    @Test
+    public void shareClusterWithOtherKeyspace() {
+
+        final CassandraSession session = new CassandraSession.SessionBuilder("localhost:" + getCassandraPort())
+                .forDataCenter("")
+                .usingKeyspace(KEYSPACE)
+                .andReplication(REPLICATION)
+                .asUser(USER)
+                .andPassword(PASSWD)
+                .preprocessTheseStatements(Arrays.asList(new ColumnDefinition() {
+                    @Override
+                    public List<Statement> getStatements() {
+                        return Arrays.asList(new SimpleStatement("create keyspace if not exists mdr_other "
+                                + "with replication = " + REPLICATION),
+                                new SimpleStatement("create table if not exists mdr_other.testshared"
+                                        + "(id int primary key, test text)"));
+                    }
+                }))
+                .asPreprocessUserName(USER)
+                .andPreprocessPassword(PASSWD)
+                .build();
+
+        final CassandraSession other = session.forKeyspace("mdr_other");
+        assertEquals("mdr_other", other.getMappingManager().getSession().getLoggedKeyspace());
+        final CassandraExecutor executor = other.getExecutor();
+        executor.execute(other.prepare(new SimpleStatement("insert into mdr_other.testshared(id, test) values (?, ?)"))
+                .bind(1, "shared"));
+        assertEquals("shared", executor.execute(new SimpleStatement("select * from mdr_other.testshared")).one()
+                .get("test", String.class));
+
+        // The other session keeps the connections open after the first is closed.
+        session.close(Duration.ofSeconds(1));
+        assertEquals(1, executor.execute(new SimpleStatement("select * from mdr_other.testshared")).all().size());
+        other.close(Duration.ofSeconds(1));
+    }
+
+    @Test
+    public void buildAsyncWithWarmUp() {
+
+        final SimpleStatement select = new SimpleStatement("select * from testwarmup where id = ?");
+        final CassandraSession session = new CassandraSession.SessionBuilder("localhost:" + getCassandraPort())
+                .prepareOnStartup(Arrays.asList(select))
+                .withConnectionsPerHost(2)
+                .usingKeyspace(KEYSPACE)
+                .andReplication(REPLICATION)
+                .asUser(USER)
+                .andPassword(PASSWD)
+                .preprocessTheseStatements(Arrays.asList(new ColumnDefinition() {
+                    @Override
+                    public List<Statement> getStatements() {
+                        return Arrays.asList(
+                                new SimpleStatement("create table if not exists testwarmup(id int primary key)"));
+                    }
+                }))
+                .asPreprocessUserName(USER)
+                .andPreprocessPassword(PASSWD)
+                .buildAsync()
+                .toCompletableFuture()
+                .join();
+
+        assertTrue(session.getStartupTimings().getPhases().keySet()
+                .containsAll(Arrays.asList("preprocess", "connect", "prepare", "warmup")));
+        assertTrue(((CassandraSessionImpl) session).isPreparedOnStartup(select));
+        assertFalse(((CassandraSessionImpl) session).isPreparedOnStartup(
+                new SimpleStatement("select id from testwarmup where id = ?")));
+        assertEquals(0, session.getExecutor().execute(session.prepare(select).bind(1)).all().size());
+        // Options of the statement are applied as the driver does, not lost to the statement prepared at startup.
+        final SimpleStatement quorum = new SimpleStatement(select.getQueryString());
+        quorum.setConsistencyLevel(ConsistencyLevel.QUORUM);
+        assertEquals(ConsistencyLevel.QUORUM, session.prepare(quorum).bind(1).getConsistencyLevel());
+    }
+
 }
@@ -0,0 +1,109 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.FakeDriver;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.HostDistance;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.policies.LoadBalancingPolicy;
+import com.google.common.collect.Lists;
+
+public class CircuitBreakerPolicyTest {
+
+    private Cluster cluster;
+    private List<Host> hosts;
+    private Iterator<Host> childPlan;
+    private final CircuitBreakers breakers = new CircuitBreakers.Builder()
+            .window(10, 5)
+            .openFor(Duration.ofMinutes(1), 1)
+            .build();
+
+    @Before
+    public void init() {
+        // Never connected, only used to create hosts.
+        cluster = Cluster.builder().addContactPoint("127.0.0.1").build();
+        hosts = Arrays.asList(
+                FakeDriver.host(cluster, FakeDriver.endPoint(new InetSocketAddress("127.0.0.1", 9042))),
+                FakeDriver.host(cluster, FakeDriver.endPoint(new InetSocketAddress("127.0.0.2", 9042))));
+    }
+
+    @After
+    public void close() {
+        cluster.close();
+    }
+
+    @Test
+    public void childPlanUntouchedWhileNoHostIsOpen() {
+
+        final CircuitBreakerPolicy policy = new CircuitBreakerPolicy(new FixedPolicy(), breakers);
+        final Iterator<Host> plan = policy.newQueryPlan("sim", null);
+        assertSame(childPlan, plan);
+    }
+
+    @Test
+    public void openHostsLast() {
+
+        final CircuitBreakerPolicy policy = new CircuitBreakerPolicy(new FixedPolicy(), breakers);
+        final CircuitBreaker first = breakers.forHost(hosts.get(0).getEndPoint());
+        for (int i = 0; i < 5; i++) {
+            first.onResult(true, 0, System.currentTimeMillis());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, first.getState());
+        assertEquals(Arrays.asList(hosts.get(1), hosts.get(0)), Lists.newArrayList(policy.newQueryPlan("sim", null)));
+    }
+
+    /**
+     * Child policy that always plans the hosts in the same order.
+     */
+    private final class FixedPolicy implements LoadBalancingPolicy {
+
+        @Override
+        public void init(final Cluster initCluster, final Collection<Host> initHosts) {
+        }
+
+        @Override
+        public HostDistance distance(final Host host) {
+            return HostDistance.LOCAL;
+        }
+
+        @Override
+        public Iterator<Host> newQueryPlan(final String loggedKeyspace, final Statement statement) {
+            childPlan = hosts.iterator();
+            return childPlan;
+        }
+
+        @Override
+        public void onAdd(final Host host) {
+        }
+
+        @Override
+        public void onUp(final Host host) {
+        }
+
+        @Override
+        public void onDown(final Host host) {
+        }
+
+        @Override
+        public void onRemove(final Host host) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private final List<CircuitBreakerEvent> events = new ArrayList<>();
+
+    private final CircuitBreakers breakers = new CircuitBreakers.Builder()
+            .window(10, 5)
+            .failureRate(0.5)
+            .slowCalls(Duration.ofMillis(100), 0.8)
+            .openFor(Duration.ofMillis(1000), 2)
+            .onStateChange(events::add)
+            .build();
+
+    @Test
+    public void openOnFailuresAndCloseAfterTrials() {
+
+        final CircuitBreaker breaker = breakers.forTable("sim.events");
+        for (int i = 0; i < 4; i++) {
+            assertTrue(breaker.tryAcquire(0));
+            breaker.onResult(i % 2 == 0, 0, 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire(0));
+        breaker.onResult(true, 0, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        assertFalse(breaker.tryAcquire(500));
+        assertEquals(1, breaker.getRejected());
+
+        // Two trial calls are let through after the open time, a third has to wait for them.
+        assertTrue(breaker.tryAcquire(1000));
+        assertTrue(breaker.tryAcquire(1000));
+        assertFalse(breaker.tryAcquire(1000));
+        breaker.onResult(false, 0, 1001);
+        breaker.onResult(false, 0, 1002);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(3, events.size());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, events.get(1).getTo());
+    }
+
+    @Test
+    public void slowSuccessesKeepDefaultBreakerClosed() {
+
+        final CircuitBreakers defaults = new CircuitBreakers.Builder().openFor(Duration.ofMillis(1000), 1).build();
+        final CircuitBreaker breaker = defaults.forTable("sim.defaults");
+        final long slow = Duration.ofSeconds(3).toNanos();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(breaker.tryAcquire(0));
+            breaker.onResult(false, slow, 0);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getSlowCalls());
+
+        // A slow trial call succeeds as well.
+        for (int i = 0; i < 20; i++) {
+            assertTrue(breaker.tryAcquire(0));
+            breaker.onResult(true, 0, 0);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire(1000));
+        breaker.onResult(false, slow, 1000);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void cancelledTrialPermitIsGivenBack() {
+
+        final CircuitBreaker breaker = breakers.forTable("sim.events");
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquire(0);
+            breaker.onResult(true, 0, 0);
+        }
+        assertTrue(breaker.tryAcquire(1000));
+        assertTrue(breaker.tryAcquire(1000));
+        assertFalse(breaker.tryAcquire(1000));
+        breaker.cancel();
+        assertTrue(breaker.tryAcquire(1000));
+        breaker.cancel();
+        breaker.cancel();
+        // No more permits than trial calls.
+        assertTrue(breaker.tryAcquire(1000));
+        assertTrue(breaker.tryAcquire(1000));
+        assertFalse(breaker.tryAcquire(1000));
+    }
+
+    @Test
+    public void reopenOnFailedTrial() {
+
+        final CircuitBreaker breaker = breakers.forTable("sim.events");
+        for (int i = 0; i < 5; i++) {
+            breaker.tryAcquire(0);
+            breaker.onResult(true, 0, 0);
+        }
+        assertTrue(breaker.tryAcquire(1000));
+        breaker.onResult(true, 0, 1000);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowsRequests(1500));
+        assertTrue(breaker.allowsRequests(2000));
+    }
+
+    @Test
+    public void openOnSlowCalls() {
+
+        final CircuitBreaker breaker = breakers.forTable("sim.slow");
+        for (int i = 0; i < 5; i++) {
+            breaker.onResult(false, Duration.ofMillis(200).toNanos(), 0);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(5, breaker.getSlowCalls());
+    }
+}
@@ -0,0 +1,64 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.DataType;
+
+public class ColumnarChunkTest {
+
+    @Test
+    public void decodePrimitives() {
+
+        final ColumnarChunk chunk = new ColumnarChunk(
+                Arrays.asList(ColumnarChunk.Type.LONG, ColumnarChunk.Type.DOUBLE, ColumnarChunk.Type.INT));
+        chunk.reset(2);
+        chunk.set(0, (ByteBuffer) ByteBuffer.allocate(8).putLong(1500000000000L).flip());
+        chunk.set(1, (ByteBuffer) ByteBuffer.allocate(8).putDouble(3.5).flip());
+        chunk.set(2, (ByteBuffer) ByteBuffer.allocate(4).putInt(42).flip());
+        chunk.endRow();
+        chunk.set(0, (ByteBuffer) ByteBuffer.allocate(8).putLong(-1).flip());
+        chunk.set(1, null);
+        chunk.set(2, (ByteBuffer) ByteBuffer.allocate(4).putInt(7).flip());
+        chunk.endRow();
+
+        assertEquals(2, chunk.size());
+        assertEquals(1500000000000L, chunk.getLongs(0)[0]);
+        assertEquals(-1L, chunk.getLongs(0)[1]);
+        assertEquals(3.5, chunk.getDoubles(1)[0], 0);
+        assertEquals(0, chunk.getDoubles(1)[1], 0);
+        assertTrue(chunk.isNull(1, 1));
+        assertFalse(chunk.isNull(1, 0));
+        assertEquals(42, chunk.getInts(2)[0]);
+    }
+
+    @Test
+    public void reuseAndGrowArrays() {
+
+        final ColumnarChunk chunk = new ColumnarChunk(Arrays.asList(ColumnarChunk.Type.INT));
+        final int[] first = chunk.getInts(0);
+        chunk.reset(10);
+        assertTrue(first == chunk.getInts(0));
+
+        chunk.reset(5000);
+        assertTrue(chunk.getInts(0).length >= 5000);
+        assertEquals(0, chunk.size());
+    }
+
+    @Test(expected = PersistenceRuntimeException.class)
+    public void wrongColumnType() {
+        new ColumnarChunk(Arrays.asList(ColumnarChunk.Type.INT)).getDoubles(0);
+    }
+
+    @Test
+    public void acceptedDataTypes() {
+        assertTrue(ColumnarChunk.Type.LONG.accepts(DataType.timestamp()));
+        assertFalse(ColumnarChunk.Type.INT.accepts(DataType.bigint()));
+    }
+}
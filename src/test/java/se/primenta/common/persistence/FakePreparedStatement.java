@@ -0,0 +1,172 @@
+package se.primenta.common.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.PreparedId;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.policies.RetryPolicy;
+
+/**
+ * Prepared statement of the {@link FakeSession}.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class FakePreparedStatement implements PreparedStatement {
+
+    private final String query;
+    private final String keyspace;
+    private final ColumnDefinitions variables;
+    private final PreparedId preparedId;
+    private final CodecRegistry codecRegistry;
+    private volatile ByteBuffer routingKey;
+    private volatile ConsistencyLevel consistency;
+    private volatile ConsistencyLevel serialConsistency;
+    private volatile boolean tracing;
+    private volatile RetryPolicy retryPolicy;
+    private volatile Map<String, ByteBuffer> outgoingPayload;
+    private volatile Boolean idempotent;
+
+    FakePreparedStatement(final String query, final String keyspace, final ColumnDefinitions variables,
+            final PreparedId preparedId, final CodecRegistry codecRegistry) {
+        this.query = query;
+        this.keyspace = keyspace;
+        this.variables = variables;
+        this.preparedId = preparedId;
+        this.codecRegistry = codecRegistry;
+    }
+
+    @Override
+    public ColumnDefinitions getVariables() {
+        return variables;
+    }
+
+    @Override
+    public BoundStatement bind(final Object... values) {
+        return new BoundStatement(this).bind(values);
+    }
+
+    @Override
+    public BoundStatement bind() {
+        return new BoundStatement(this);
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(final ByteBuffer key) {
+        routingKey = key;
+        return this;
+    }
+
+    @Override
+    public PreparedStatement setRoutingKey(final ByteBuffer... keys) {
+        routingKey = ProfiledPreparedStatement.composeRoutingKey(keys);
+        return this;
+    }
+
+    @Override
+    public ByteBuffer getRoutingKey() {
+        return routingKey;
+    }
+
+    @Override
+    public PreparedStatement setConsistencyLevel(final ConsistencyLevel level) {
+        consistency = level;
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getConsistencyLevel() {
+        return consistency;
+    }
+
+    @Override
+    public PreparedStatement setSerialConsistencyLevel(final ConsistencyLevel level) {
+        serialConsistency = level;
+        return this;
+    }
+
+    @Override
+    public ConsistencyLevel getSerialConsistencyLevel() {
+        return serialConsistency;
+    }
+
+    @Override
+    public String getQueryString() {
+        return query;
+    }
+
+    @Override
+    public String getQueryKeyspace() {
+        return keyspace;
+    }
+
+    @Override
+    public PreparedStatement enableTracing() {
+        tracing = true;
+        return this;
+    }
+
+    @Override
+    public PreparedStatement disableTracing() {
+        tracing = false;
+        return this;
+    }
+
+    @Override
+    public boolean isTracing() {
+        return tracing;
+    }
+
+    @Override
+    public PreparedStatement setRetryPolicy(final RetryPolicy policy) {
+        retryPolicy = policy;
+        return this;
+    }
+
+    @Override
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    @Override
+    public PreparedId getPreparedId() {
+        return preparedId;
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getIncomingPayload() {
+        return null;
+    }
+
+    @Override
+    public Map<String, ByteBuffer> getOutgoingPayload() {
+        return outgoingPayload;
+    }
+
+    @Override
+    public PreparedStatement setOutgoingPayload(final Map<String, ByteBuffer> payload) {
+        outgoingPayload = payload;
+        return this;
+    }
+
+    @Override
+    public CodecRegistry getCodecRegistry() {
+        return codecRegistry;
+    }
+
+    @Override
+    public PreparedStatement setIdempotent(final Boolean value) {
+        idempotent = value;
+        return this;
+    }
+
+    @Override
+    public Boolean isIdempotent() {
+        return idempotent;
+    }
+}
@@ -0,0 +1,158 @@
+package se.primenta.common.persistence;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Row;
+import com.google.common.base.Defaults;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Result set of the {@link FakeSession}. All rows are available at once, there is no paging.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class FakeResultSet implements ResultSet {
+
+    static final String APPLIED = "[applied]";
+
+    private final ColumnDefinitions definitions;
+    private final List<Row> rows;
+    private final ExecutionInfo executionInfo;
+    private int next;
+
+    FakeResultSet(final ColumnDefinitions definitions, final List<Object[]> values, final CodecRegistry codecs,
+            final ExecutionInfo executionInfo) {
+        this.definitions = definitions;
+        this.executionInfo = executionInfo;
+        rows = new ArrayList<>(values.size());
+        values.forEach(v -> rows.add(row(definitions, v, codecs)));
+    }
+
+    @Override
+    public boolean isExhausted() {
+        return next >= rows.size();
+    }
+
+    @Override
+    public boolean isFullyFetched() {
+        return true;
+    }
+
+    @Override
+    public int getAvailableWithoutFetching() {
+        return rows.size() - next;
+    }
+
+    @Override
+    public ListenableFuture<ResultSet> fetchMoreResults() {
+        return Futures.<ResultSet> immediateFuture(this);
+    }
+
+    @Override
+    public Row one() {
+        return isExhausted() ? null : rows.get(next++);
+    }
+
+    @Override
+    public List<Row> all() {
+        final List<Row> remaining = new ArrayList<>(rows.subList(next, rows.size()));
+        next = rows.size();
+        return remaining;
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+
+            @Override
+            public boolean hasNext() {
+                return !isExhausted();
+            }
+
+            @Override
+            public Row next() {
+                return one();
+            }
+        };
+    }
+
+    @Override
+    public ExecutionInfo getExecutionInfo() {
+        return executionInfo;
+    }
+
+    @Override
+    public List<ExecutionInfo> getAllExecutionInfo() {
+        return Collections.singletonList(executionInfo);
+    }
+
+    @Override
+    public ColumnDefinitions getColumnDefinitions() {
+        return definitions;
+    }
+
+    @Override
+    public boolean wasApplied() {
+        if (rows.isEmpty() || !definitions.contains(APPLIED)) {
+            return true;
+        }
+        return rows.get(0).getBool(APPLIED);
+    }
+
+    /**
+     * A row backed by an array of values. The typed getters of the driver row all return the stored value, serialized
+     * getters use the codec of the column type.
+     */
+    private static Row row(final ColumnDefinitions definitions, final Object[] values, final CodecRegistry codecs) {
+
+        return (Row) Proxy.newProxyInstance(Row.class.getClassLoader(), new Class<?>[] { Row.class },
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "getColumnDefinitions":
+                        return definitions;
+                    case "toString":
+                        return "Row" + Arrays.toString(values);
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        break;
+                    }
+                    if (args == null || args.length == 0) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    final int index = args[0] instanceof Integer ? (Integer) args[0]
+                            : definitions.getIndexOf((String) args[0]);
+                    final Object value = values[index];
+                    switch (method.getName()) {
+                    case "isNull":
+                        return value == null;
+                    case "getBytesUnsafe":
+                    case "getBytes":
+                        return value == null ? null
+                                : codecs.codecFor(definitions.getType(index), value).serialize(value,
+                                        ProtocolVersion.V4);
+                    default:
+                        return value == null ? defaultValue(method) : value;
+                    }
+                });
+    }
+
+    private static Object defaultValue(final Method method) {
+        return method.getReturnType().isPrimitive() ? Defaults.defaultValue(method.getReturnType()) : null;
+    }
+}
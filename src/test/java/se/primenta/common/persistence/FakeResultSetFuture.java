@@ -0,0 +1,59 @@
+package se.primenta.common.persistence;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.DriverInternalError;
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Future of the {@link FakeSession}, completed when the simulated latency has passed.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class FakeResultSetFuture extends AbstractFuture<ResultSet> implements ResultSetFuture {
+
+    @Override
+    protected boolean set(final ResultSet result) {
+        return super.set(result);
+    }
+
+    @Override
+    protected boolean setException(final Throwable throwable) {
+        return super.setException(throwable);
+    }
+
+    @Override
+    public ResultSet getUninterruptibly() {
+        try {
+            return Uninterruptibles.getUninterruptibly(this);
+        } catch (final ExecutionException e) {
+            throw propagate(e);
+        }
+    }
+
+    @Override
+    public ResultSet getUninterruptibly(final long timeout, final TimeUnit unit) throws TimeoutException {
+        try {
+            return Uninterruptibles.getUninterruptibly(this, timeout, unit);
+        } catch (final ExecutionException e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Rethrow driver exceptions as the driver does, with the stack trace of the calling thread.
+     */
+    private static RuntimeException propagate(final ExecutionException e) {
+        if (e.getCause() instanceof DriverException) {
+            throw ((DriverException) e.getCause()).copy();
+        }
+        throw new DriverInternalError("Unexpected error in the fake session", e.getCause());
+    }
+}
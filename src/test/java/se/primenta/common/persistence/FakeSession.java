@@ -0,0 +1,664 @@
+package se.primenta.common.persistence;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import com.datastax.driver.core.AbstractSession;
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CloseFuture;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ColumnDefinitions;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.EndPoint;
+import com.datastax.driver.core.ExecutionInfo;
+import com.datastax.driver.core.FakeDriver;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.DriverException;
+import com.datastax.driver.core.exceptions.InvalidQueryException;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.datastax.driver.core.exceptions.ReadTimeoutException;
+import com.datastax.driver.core.exceptions.SyntaxError;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * In-memory stand-in for a driver session, for tests of overload and timing behavior that cannot be reproduced
+ * against a real node. Tables are created with {@link #createTable(String, LinkedHashMap)} and hold one row per
+ * partition key. Simple and prepared inserts, with or without IF NOT EXISTS, updates, deletes and selects by partition
+ * key or of the whole table are supported, with literals or bind markers. Each request gets a latency from the
+ * {@link LatencyDistribution} and can fail with an injected timeout. Requests slower than the read timeout of the
+ * statement fail with {@link OperationTimedOutException} as with the driver.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class FakeSession extends AbstractSession {
+
+    private static final ProtocolVersion PROTOCOL_VERSION = ProtocolVersion.V4;
+
+    private static final int DEFAULT_READ_TIMEOUT_MILLIS = 12000;
+
+    private static final EndPoint COORDINATOR = FakeDriver.endPoint(new InetSocketAddress("127.0.0.1", 9042));
+
+    private static final Pattern INSERT = Pattern.compile(
+            "insert\\s+into\\s+(?:\\w+\\.)?(\\w+)\\s*\\((.*?)\\)\\s*values\\s*\\((.*)\\)(\\s+if\\s+not\\s+exists)?",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern SELECT = Pattern.compile(
+            "select\\s+(.+?)\\s+from\\s+(?:\\w+\\.)?(\\w+)(?:\\s+where\\s+(\\w+)\\s*=\\s*(\\S+))?",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern UPDATE = Pattern.compile(
+            "update\\s+(?:\\w+\\.)?(\\w+)\\s+set\\s+(.+?)\\s+where\\s+(\\w+)\\s*=\\s*(\\S+)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern DELETE = Pattern.compile(
+            "delete\\s+from\\s+(?:\\w+\\.)?(\\w+)\\s+where\\s+(\\w+)\\s*=\\s*(\\S+)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    /**
+     * Commas outside of quoted strings.
+     */
+    private static final String SEPARATOR = "\\s*,\\s*(?=(?:[^']*'[^']*')*[^']*$)";
+
+    private enum Kind {
+        INSERT, SELECT, UPDATE, DELETE
+    }
+
+    private final String keyspace;
+    private final Cluster cluster;
+    private final CodecRegistry codecs;
+    private final ExecutionInfo executionInfo;
+    private final ScheduledThreadPoolExecutor timer;
+    private final ConcurrentMap<String, Table> tables = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Query> queries = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile LatencyDistribution latency = LatencyDistribution.none();
+    private volatile double writeTimeoutRate;
+    private volatile double readTimeoutRate;
+    private volatile double clientTimeoutRate;
+    private volatile boolean closed;
+
+    FakeSession(final String keyspace) {
+        this.keyspace = keyspace;
+        // Never connected, only the configuration is used.
+        cluster = Cluster.builder().addContactPoint("127.0.0.1").withProtocolVersion(PROTOCOL_VERSION).build();
+        codecs = cluster.getConfiguration().getCodecRegistry();
+        // Every result is reported as coming from the one coordinator.
+        executionInfo = new ExecutionInfo(0, 0, Collections.singletonList(FakeDriver.host(cluster, COORDINATOR)),
+                ConsistencyLevel.ONE, Collections.<String, ByteBuffer> emptyMap());
+        timer = new ScheduledThreadPoolExecutor(Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                new ThreadFactoryBuilder().setNameFormat("fake-session-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Create a table, the first column is the partition key.
+     */
+    FakeSession createTable(final String table, final LinkedHashMap<String, DataType> columns) {
+        tables.put(table.toLowerCase(), new Table(table.toLowerCase(), columns));
+        return this;
+    }
+
+    FakeSession withLatency(final LatencyDistribution distribution) {
+        latency = distribution;
+        return this;
+    }
+
+    /**
+     * Share of writes that fail with a {@link WriteTimeoutException}, of type CAS for conditional writes.
+     */
+    FakeSession withWriteTimeouts(final double rate) {
+        writeTimeoutRate = rate;
+        return this;
+    }
+
+    /**
+     * Share of reads that fail with a {@link ReadTimeoutException}.
+     */
+    FakeSession withReadTimeouts(final double rate) {
+        readTimeoutRate = rate;
+        return this;
+    }
+
+    /**
+     * Share of all requests that fail with an {@link OperationTimedOutException}, as if the node never answered.
+     */
+    FakeSession withClientTimeouts(final double rate) {
+        clientTimeoutRate = rate;
+        return this;
+    }
+
+    /**
+     * @return number of rows in the table.
+     */
+    int size(final String table) {
+        return table(table).rows.size();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    @Override
+    public String getLoggedKeyspace() {
+        return keyspace;
+    }
+
+    @Override
+    public Session init() {
+        return this;
+    }
+
+    @Override
+    public ListenableFuture<Session> initAsync() {
+        return Futures.<Session> immediateFuture(this);
+    }
+
+    @Override
+    public ResultSetFuture executeAsync(final Statement statement) {
+
+        final FakeResultSetFuture future = new FakeResultSetFuture();
+        if (closed) {
+            future.setException(new IllegalStateException("Could not send request, session is closed"));
+            return future;
+        }
+        requests.incrementAndGet();
+        final List<Operation> operations;
+        try {
+            operations = operations(statement);
+        } catch (final QueryValidationException e) {
+            // Rejected by the coordinator. Values without a codec are thrown here, as the driver does when it
+            // serializes the request.
+            future.setException(e);
+            return future;
+        }
+
+        final long latencyNanos = latency.nextNanos();
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(
+                statement.getReadTimeoutMillis() > 0 ? statement.getReadTimeoutMillis() : DEFAULT_READ_TIMEOUT_MILLIS);
+        final DriverException fault = latencyNanos > timeoutNanos
+                ? new OperationTimedOutException(COORDINATOR, "Timed out waiting for server response")
+                : fault(statement, operations);
+
+        inFlight.incrementAndGet();
+        final Runnable complete = () -> {
+            inFlight.decrementAndGet();
+            if (fault != null) {
+                future.setException(fault);
+                return;
+            }
+            try {
+                ResultSet result = null;
+                for (final Operation operation : operations) {
+                    result = operation.apply();
+                }
+                future.set(result);
+            } catch (final RuntimeException e) {
+                future.setException(e);
+            }
+        };
+        if (latencyNanos <= 0) {
+            complete.run();
+        } else {
+            timer.schedule(complete, Math.min(latencyNanos, timeoutNanos), TimeUnit.NANOSECONDS);
+        }
+        return future;
+    }
+
+    private DriverException fault(final Statement statement, final List<Operation> operations) {
+
+        final boolean write = operations.stream().anyMatch(o -> o.query.kind != Kind.SELECT);
+        final boolean conditional = operations.stream().anyMatch(o -> o.query.ifNotExists);
+        final ConsistencyLevel consistency = statement.getConsistencyLevel() == null ? ConsistencyLevel.ONE
+                : statement.getConsistencyLevel();
+        final double roll = ThreadLocalRandom.current().nextDouble();
+        if (roll < clientTimeoutRate) {
+            return new OperationTimedOutException(COORDINATOR, "Timed out waiting for server response");
+        }
+        if (write && roll < clientTimeoutRate + writeTimeoutRate) {
+            final WriteType type = conditional ? WriteType.CAS
+                    : statement instanceof BatchStatement ? WriteType.BATCH : WriteType.SIMPLE;
+            return new WriteTimeoutException(COORDINATOR, conditional ? ConsistencyLevel.SERIAL : consistency, type, 0,
+                    1);
+        }
+        if (!write && roll < clientTimeoutRate + readTimeoutRate) {
+            return new ReadTimeoutException(COORDINATOR, consistency, 0, 1, false);
+        }
+        return null;
+    }
+
+    @Override
+    protected ListenableFuture<PreparedStatement> prepareAsync(final String query,
+            final Map<String, ByteBuffer> customPayload) {
+
+        try {
+            final Query parsed = query(query);
+            final int[] routingKey = parsed.keyMarker < 0 ? null : new int[] { parsed.keyMarker };
+            return Futures.<PreparedStatement> immediateFuture(new FakePreparedStatement(query, keyspace,
+                    parsed.variables, FakeDriver.preparedId(query, parsed.variables, parsed.result, routingKey,
+                            PROTOCOL_VERSION),
+                    codecs));
+        } catch (final DriverException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public CloseFuture closeAsync() {
+        closed = true;
+        timer.shutdownNow();
+        cluster.close();
+        return FakeDriver.closed();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    @Override
+    public State getState() {
+        return new State() {
+
+            @Override
+            public Session getSession() {
+                return FakeSession.this;
+            }
+
+            @Override
+            public Collection<Host> getConnectedHosts() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public int getOpenConnections(final Host host) {
+                return 0;
+            }
+
+            @Override
+            public int getTrashedConnections(final Host host) {
+                return 0;
+            }
+
+            @Override
+            public int getInFlightQueries(final Host host) {
+                return inFlight.get();
+            }
+        };
+    }
+
+    private List<Operation> operations(final Statement statement) {
+
+        if (statement instanceof BatchStatement) {
+            final List<Operation> operations = new ArrayList<>();
+            ((BatchStatement) statement).getStatements().forEach(s -> operations.addAll(operations(s)));
+            return operations;
+        }
+        if (statement instanceof BoundStatement) {
+            final BoundStatement bound = (BoundStatement) statement;
+            final Query query = query(bound.preparedStatement().getQueryString());
+            final Object[] values = new Object[query.markers.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = bound.isSet(i) ? bound.getObject(i) : null;
+            }
+            return Collections.singletonList(new Operation(query, values));
+        }
+        if (statement instanceof RegularStatement) {
+            final RegularStatement regular = (RegularStatement) statement;
+            final Query query = query(regular.getQueryString(codecs));
+            final ByteBuffer[] serialized = regular.getValues(PROTOCOL_VERSION, codecs);
+            final int count = serialized == null ? 0 : serialized.length;
+            if (count != query.markers.size()) {
+                throw new InvalidQueryException(String.format("Expected %d values, got %d", query.markers.size(),
+                        count));
+            }
+            final Object[] values = new Object[count];
+            for (int i = 0; i < count; i++) {
+                final DataType type = query.variables.getType(i);
+                values[i] = codecs.codecFor(type).deserialize(serialized[i], PROTOCOL_VERSION);
+            }
+            return Collections.singletonList(new Operation(query, values));
+        }
+        throw new UnsupportedOperationException("Not supported by the fake session: " + statement.getClass());
+    }
+
+    private Query query(final String cql) {
+        return queries.computeIfAbsent(cql, this::parse);
+    }
+
+    private Query parse(final String cql) {
+
+        final String statement = cql.trim().replaceAll(";$", "").trim();
+        Matcher m = INSERT.matcher(statement);
+        if (m.matches()) {
+            final Table table = table(m.group(1));
+            final List<String> columns = split(m.group(2));
+            final List<String> terms = split(m.group(3));
+            if (columns.size() != terms.size()) {
+                throw new InvalidQueryException("Unmatched column names/values");
+            }
+            final Query query = new Query(Kind.INSERT, table, m.group(4) != null);
+            for (int i = 0; i < columns.size(); i++) {
+                query.write(columns.get(i), terms.get(i));
+            }
+            if (!columns.contains(table.key())) {
+                throw new InvalidQueryException("Some partition key parts are missing: " + table.key());
+            }
+            return query.done();
+        }
+        m = UPDATE.matcher(statement);
+        if (m.matches()) {
+            final Query query = new Query(Kind.UPDATE, table(m.group(1)), false);
+            for (final String assignment : split(m.group(2))) {
+                final String[] parts = assignment.split("\\s*=\\s*", 2);
+                if (parts.length != 2) {
+                    throw new SyntaxError(COORDINATOR, "Invalid assignment " + assignment);
+                }
+                query.write(parts[0], parts[1]);
+            }
+            return query.where(m.group(3), m.group(4)).done();
+        }
+        m = DELETE.matcher(statement);
+        if (m.matches()) {
+            return new Query(Kind.DELETE, table(m.group(1)), false).where(m.group(2), m.group(3)).done();
+        }
+        m = SELECT.matcher(statement);
+        if (m.matches()) {
+            final Table table = table(m.group(2));
+            final Query query = new Query(Kind.SELECT, table, false);
+            if ("*".equals(m.group(1).trim())) {
+                query.columns.addAll(table.columns);
+            } else {
+                split(m.group(1)).forEach(c -> query.columns.add(table.column(c)));
+            }
+            return m.group(3) == null ? query.done() : query.where(m.group(3), m.group(4)).done();
+        }
+        throw new SyntaxError(COORDINATOR, "Not supported by the fake session: " + cql);
+    }
+
+    private Table table(final String name) {
+        final Table table = tables.get(name.toLowerCase());
+        if (table == null) {
+            throw new InvalidQueryException("unconfigured table " + name);
+        }
+        return table;
+    }
+
+    private static List<String> split(final String list) {
+        return Arrays.stream(list.trim().split(SEPARATOR)).map(String::trim).collect(Collectors.toList());
+    }
+
+    /**
+     * Parse a literal of a column type.
+     */
+    private static Object literal(final String term, final DataType type) {
+
+        if ("null".equalsIgnoreCase(term)) {
+            return null;
+        }
+        final String value = term.startsWith("'") && term.endsWith("'") && term.length() > 1
+                ? term.substring(1, term.length() - 1).replace("''", "'") : term;
+        try {
+            switch (type.getName()) {
+            case INT:
+                return Integer.valueOf(value);
+            case BIGINT:
+            case COUNTER:
+                return Long.valueOf(value);
+            case DOUBLE:
+                return Double.valueOf(value);
+            case FLOAT:
+                return Float.valueOf(value);
+            case BOOLEAN:
+                return Boolean.valueOf(value);
+            case UUID:
+            case TIMEUUID:
+                return UUID.fromString(value);
+            case TEXT:
+            case VARCHAR:
+            case ASCII:
+                return value;
+            default:
+                throw new InvalidQueryException("Literals of type " + type + " are not supported, use a bind marker");
+            }
+        } catch (final IllegalArgumentException e) {
+            throw new InvalidQueryException("Invalid " + type + " literal " + term);
+        }
+    }
+
+    /**
+     * A table with a single row per partition.
+     */
+    private static final class Table {
+
+        private final String name;
+        private final List<String> columns;
+        private final List<DataType> types;
+        private final ConcurrentMap<Object, Object[]> rows = new ConcurrentHashMap<>();
+
+        Table(final String name, final LinkedHashMap<String, DataType> definition) {
+            this.name = name;
+            columns = definition.keySet().stream().map(String::toLowerCase).collect(Collectors.toList());
+            types = new ArrayList<>(definition.values());
+        }
+
+        String key() {
+            return columns.get(0);
+        }
+
+        String column(final String column) {
+            final String name = column.toLowerCase();
+            if (!columns.contains(name)) {
+                throw new InvalidQueryException("Undefined column name " + column);
+            }
+            return name;
+        }
+
+        int indexOf(final String column) {
+            return columns.indexOf(column);
+        }
+
+        DataType type(final String column) {
+            return types.get(indexOf(column));
+        }
+    }
+
+    /**
+     * Marks a term that is given as a bind marker.
+     */
+    private static final class Marker {
+
+        private final int index;
+
+        Marker(final int index) {
+            this.index = index;
+        }
+    }
+
+    /**
+     * A parsed statement, with the terms of the written columns and the partition key either a literal or a marker.
+     */
+    private final class Query {
+
+        private final Kind kind;
+        private final Table table;
+        private final boolean ifNotExists;
+        private final List<String> columns = new ArrayList<>();
+        private final List<Object> terms = new ArrayList<>();
+        private final List<String> markers = new ArrayList<>();
+        private Object key;
+        private int keyMarker = -1;
+        private ColumnDefinitions variables;
+        private ColumnDefinitions result;
+
+        Query(final Kind kind, final Table table, final boolean ifNotExists) {
+            this.kind = kind;
+            this.table = table;
+            this.ifNotExists = ifNotExists;
+        }
+
+        void write(final String column, final String term) {
+            final String name = table.column(column);
+            columns.add(name);
+            terms.add(term(name, term));
+            if (name.equals(table.key())) {
+                keyMarker = terms.get(terms.size() - 1) instanceof Marker ? markers.size() - 1 : -1;
+            }
+        }
+
+        Query where(final String column, final String term) {
+            if (!table.column(column).equals(table.key())) {
+                throw new InvalidQueryException("Only the partition key " + table.key() + " can be restricted");
+            }
+            key = term(table.key(), term);
+            keyMarker = key instanceof Marker ? markers.size() - 1 : -1;
+            return this;
+        }
+
+        private Object term(final String column, final String term) {
+            if ("?".equals(term)) {
+                markers.add(column);
+                return new Marker(markers.size() - 1);
+            }
+            return literal(term, table.type(column));
+        }
+
+        Query done() {
+            variables = FakeDriver.columnDefinitions(keyspace, table.name, markers,
+                    markers.stream().map(table::type).collect(Collectors.toList()), codecs);
+            if (kind == Kind.SELECT) {
+                result = FakeDriver.columnDefinitions(keyspace, table.name, columns,
+                        columns.stream().map(table::type).collect(Collectors.toList()), codecs);
+            } else if (ifNotExists) {
+                final List<String> names = new ArrayList<>(table.columns);
+                names.add(0, FakeResultSet.APPLIED);
+                final List<DataType> types = new ArrayList<>(table.types);
+                types.add(0, DataType.cboolean());
+                result = FakeDriver.columnDefinitions(keyspace, table.name, names, types, codecs);
+            } else {
+                result = FakeDriver.columnDefinitions(keyspace, table.name, Collections.emptyList(),
+                        Collections.emptyList(), codecs);
+            }
+            return this;
+        }
+    }
+
+    /**
+     * A query with its bound values.
+     */
+    private final class Operation {
+
+        private final Query query;
+        private final Object[] values;
+
+        Operation(final Query query, final Object[] values) {
+            this.query = query;
+            this.values = values;
+        }
+
+        private Object value(final Object term) {
+            return term instanceof Marker ? values[((Marker) term).index] : term;
+        }
+
+        ResultSet apply() {
+
+            final Table table = query.table;
+            switch (query.kind) {
+            case INSERT:
+            case UPDATE:
+                final Object[] row = new Object[table.columns.size()];
+                for (int i = 0; i < query.columns.size(); i++) {
+                    row[table.indexOf(query.columns.get(i))] = value(query.terms.get(i));
+                }
+                final Object key = query.key == null ? row[0] : value(query.key);
+                if (key == null) {
+                    throw new InvalidQueryException("Invalid null value for partition key " + table.key());
+                }
+                row[0] = key;
+                if (query.ifNotExists) {
+                    final Object[] existing = table.rows.putIfAbsent(key, row);
+                    final Object[] applied = new Object[table.columns.size() + 1];
+                    applied[0] = existing == null;
+                    if (existing != null) {
+                        System.arraycopy(existing, 0, applied, 1, existing.length);
+                    }
+                    return result(Collections.singletonList(existing == null ? new Object[] { true } : applied));
+                }
+                table.rows.merge(key, row, (old, written) -> {
+                    final Object[] merged = old.clone();
+                    query.columns.forEach(c -> merged[table.indexOf(c)] = written[table.indexOf(c)]);
+                    return merged;
+                });
+                return result(Collections.emptyList());
+            case DELETE:
+                table.rows.remove(value(query.key));
+                return result(Collections.emptyList());
+            default:
+                final Collection<Object[]> rows = query.key == null ? table.rows.values()
+                        : table.rows.containsKey(value(query.key))
+                                ? Collections.singletonList(table.rows.get(value(query.key)))
+                                : Collections.emptyList();
+                final int[] projection = query.columns.stream().mapToInt(table::indexOf).toArray();
+                return result(rows.stream().filter(r -> r != null).map(r -> {
+                    final Object[] selected = new Object[projection.length];
+                    for (int i = 0; i < projection.length; i++) {
+                        selected[i] = r[projection[i]];
+                    }
+                    return selected;
+                }).collect(Collectors.toList()));
+            }
+        }
+
+        private ResultSet result(final List<Object[]> rows) {
+            if (query.ifNotExists && rows.size() == 1 && rows.get(0).length == 1) {
+                // An applied conditional insert only returns the applied column.
+                return new FakeResultSet(FakeDriver.columnDefinitions(keyspace, query.table.name,
+                        Collections.singletonList(FakeResultSet.APPLIED),
+                        Collections.singletonList(DataType.cboolean()), codecs), rows, codecs, executionInfo);
+            }
+            return new FakeResultSet(query.result, rows, codecs, executionInfo);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.WriteType;
+import com.datastax.driver.core.exceptions.OperationTimedOutException;
+import com.datastax.driver.core.exceptions.WriteTimeoutException;
+
+public class FakeSessionTest {
+
+    private FakeSession session;
+
+    @Before
+    public void init() {
+        final LinkedHashMap<String, DataType> columns = new LinkedHashMap<>();
+        columns.put("id", DataType.cint());
+        columns.put("test", DataType.text());
+        columns.put("amount", DataType.bigint());
+        session = new FakeSession("sim").createTable("testexecutor", columns);
+    }
+
+    @After
+    public void close() {
+        session.close();
+    }
+
+    private CassandraExecutor executor(final Optional<CircuitBreakers> breakers) {
+        return new CassandraExecutorImpl(session, "sim", new InFlightRequests(), Optional.empty(), breakers,
+                Optional.empty(), Priority.INTERACTIVE);
+    }
+
+    @Test
+    public void keyValueStatements() {
+
+        final CassandraExecutor executor = executor(Optional.empty());
+        executor.execute(new SimpleStatement("insert into sim.testexecutor(id, test) values (1, 'it''s')"));
+        final PreparedStatement insert = session
+                .prepare("INSERT INTO testexecutor (id, test, amount) VALUES (?, ?, ?)");
+        executor.execute(insert.bind(2, "two", 20L));
+        executor.execute(new SimpleStatement("update testexecutor set amount = ? where id = ?", 10L, 1));
+
+        assertEquals("it's", executor.execute(new SimpleStatement("select test from testexecutor where id = 1")).one()
+                .getString("test"));
+        final PreparedStatement select = session.prepare("SELECT * FROM testexecutor WHERE id = ?");
+        assertEquals(10L, executor.execute(select.bind(1)).one().getLong("amount"));
+        assertEquals(2, executor.execute(new SimpleStatement("select id from testexecutor")).all().size());
+
+        executor.execute(new SimpleStatement("delete from testexecutor where id = 2"));
+        assertNull(executor.execute(select.bind(2)).one());
+        assertEquals(1, session.size("testexecutor"));
+    }
+
+    @Test
+    public void conditionalInsert() {
+
+        final CassandraExecutor executor = executor(Optional.empty());
+        final PreparedStatement insert = session
+                .prepare("INSERT INTO testexecutor (id, test) VALUES (?, ?) IF NOT EXISTS");
+        assertTrue(executor.executeConditional(insert.bind(1, "first")).wasApplied());
+        final CasResult second = executor.executeConditional(insert.bind(1, "second"));
+        assertFalse(second.wasApplied());
+        assertEquals("first", second.getCurrentValues().get().getString("test"));
+    }
+
+    @Test
+    public void injectedLatencyAndTimeouts() throws InterruptedException {
+
+        session.withLatency(LatencyDistribution.fixed(Duration.ofMillis(200)));
+        final Statement statement = new SimpleStatement("select * from testexecutor where id = 1")
+                .setReadTimeoutMillis(50);
+        final long started = System.nanoTime();
+        final ResultSetFuture future = session.executeAsync(statement);
+        try {
+            future.get();
+            fail("Expected a client timeout");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof OperationTimedOutException);
+        }
+        // The timeout fires at the read timeout, not at the end of the latency.
+        assertTrue(System.nanoTime() - started < 190_000_000L);
+
+        session.withLatency(LatencyDistribution.none()).withWriteTimeouts(1);
+        try {
+            session.execute("insert into testexecutor(id, test) values (1, 'x') if not exists");
+            fail("Expected a write timeout");
+        } catch (final WriteTimeoutException e) {
+            assertEquals(WriteType.CAS, e.getWriteType());
+        }
+        assertEquals(0, session.size("testexecutor"));
+    }
+
+    @Test
+    public void circuitOpensOnWriteTimeouts() {
+
+        final CircuitBreakers breakers = new CircuitBreakers.Builder().window(10, 5).build();
+        final CassandraExecutor executor = executor(Optional.of(breakers));
+        final PreparedStatement insert = session.prepare("INSERT INTO testexecutor (id, test) VALUES (?, ?)");
+        session.withWriteTimeouts(1);
+        for (int i = 0; i < 5; i++) {
+            try {
+                executor.execute(insert.bind(i, "x"));
+                fail("Expected a write timeout");
+            } catch (final PersistenceRuntimeException e) {
+                assertTrue(e.getCause() instanceof WriteTimeoutException);
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breakers.forTable("sim.testexecutor").getState());
+        try {
+            executor.execute(insert.bind(6, "x"));
+            fail("Expected the statement to be shed");
+        } catch (final CircuitOpenException e) {
+            // Shed without reaching the session.
+        }
+        assertEquals(15, session.getRequests());
+    }
+
+    @Test
+    public void conditionalAndColumnarUseTheBreaker() {
+
+        final CircuitBreakers breakers = new CircuitBreakers.Builder().window(10, 5).build();
+        final CassandraExecutor executor = executor(Optional.of(breakers));
+        final PreparedStatement insert = session
+                .prepare("INSERT INTO testexecutor (id, test) VALUES (?, ?) IF NOT EXISTS");
+        session.withWriteTimeouts(1);
+        for (int i = 0; i < 5; i++) {
+            try {
+                executor.executeConditional(insert.bind(i, "x").setIdempotent(false));
+                fail("Expected a write timeout");
+            } catch (final PersistenceRuntimeException e) {
+                assertTrue(e.getCause() instanceof WriteTimeoutException);
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breakers.forTable("sim.testexecutor").getState());
+        try {
+            executor.executeConditional(insert.bind(6, "x"));
+            fail("Expected the statement to be shed");
+        } catch (final CircuitOpenException e) {
+            // Shed without reaching the session.
+        }
+        final PreparedStatement select = session.prepare("SELECT amount FROM testexecutor WHERE id = ?");
+        try {
+            executor.executeColumnar(select.bind(1), Arrays.asList(ColumnarChunk.Type.LONG), chunk -> {
+            });
+            fail("Expected the statement to be shed");
+        } catch (final CircuitOpenException e) {
+            // Shed without reaching the session.
+        }
+        assertEquals(5, session.getRequests());
+    }
+
+    @Test
+    public void cancelledRequestIsNotAFailure() {
+
+        final CircuitBreakers breakers = new CircuitBreakers.Builder().build();
+        final CassandraExecutor executor = executor(Optional.of(breakers));
+        session.withLatency(LatencyDistribution.fixed(Duration.ofMillis(200)));
+        final ResultSetFuture future = executor
+                .executeAsync(session.prepare("SELECT * FROM testexecutor WHERE id = ?").bind(1));
+        assertTrue(future.cancel(true));
+
+        final CircuitBreaker table = breakers.forTable("sim.testexecutor");
+        assertEquals(0, table.getCalls());
+        assertEquals(0, table.getFailures());
+    }
+
+    @Test
+    public void resultsReportTheQueriedHost() {
+
+        final CircuitBreakers breakers = new CircuitBreakers.Builder().build();
+        final CassandraExecutor executor = executor(Optional.of(breakers));
+        executor.execute(session.prepare("SELECT * FROM testexecutor WHERE id = ?").bind(1));
+
+        final List<CircuitBreaker> hosts = breakers.getBreakers().values().stream()
+                .filter(b -> b.getName().startsWith("host:")).collect(Collectors.toList());
+        assertEquals(1, hosts.size());
+        assertEquals(1, hosts.get(0).getCalls());
+    }
+}
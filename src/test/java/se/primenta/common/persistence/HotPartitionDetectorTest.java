@@ -0,0 +1,62 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HotPartitionDetectorTest {
+
+    private static ByteBuffer key(final int id) {
+        return (ByteBuffer) ByteBuffer.allocate(4).putInt(id).flip();
+    }
+
+    @Test
+    public void findTopPartitions() {
+
+        final HotPartitionDetector detector = new HotPartitionDetector.Builder().sampling(1).topK(2).build();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 1000; i++) {
+            detector.record("sim.events", key(i % 100), now);
+            if (i % 2 == 0) {
+                detector.record("sim.events", key(7), now);
+            }
+            if (i % 4 == 0) {
+                detector.record("sim.events", key(42), now);
+            }
+        }
+
+        final List<HotPartition> top = detector.getTopPartitions("sim.events");
+        assertEquals(2, top.size());
+        assertEquals(key(7), top.get(0).getRoutingKey());
+        assertEquals(key(42), top.get(1).getRoutingKey());
+        assertTrue(top.get(0).getShare() > 0.25);
+        assertTrue(detector.getTopPartitions("sim.other").isEmpty());
+    }
+
+    @Test
+    public void alertOncePerWindow() {
+
+        final List<HotPartition> alerts = new ArrayList<>();
+        final HotPartitionDetector detector = new HotPartitionDetector.Builder()
+                .sampling(1)
+                .window(Duration.ofSeconds(1))
+                .alertAbove(0.5, alerts::add)
+                .build();
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 200; i++) {
+            detector.record("sim.events", key(i % 2 == 0 ? 1 : i), now);
+        }
+        assertEquals(1, alerts.size());
+        assertEquals(key(1), alerts.get(0).getRoutingKey());
+
+        // A new window may report the same partition again.
+        detector.record("sim.events", key(1), now + 1500);
+        assertEquals(2, alerts.size());
+    }
+}
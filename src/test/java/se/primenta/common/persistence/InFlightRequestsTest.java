@@ -0,0 +1,50 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class InFlightRequestsTest {
+
+    @Test
+    public void drainWaitsForOutstandingWork() {
+
+        final InFlightRequests inFlight = new InFlightRequests();
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        inFlight.begin();
+        inFlight.begin();
+        scheduler.schedule(inFlight::end, 20, TimeUnit.MILLISECONDS);
+        scheduler.schedule(inFlight::end, 40, TimeUnit.MILLISECONDS);
+
+        final DrainResult result = inFlight.drain(Duration.ofSeconds(5));
+        assertEquals(2, result.getCompleted());
+        assertEquals(0, result.getAbandoned());
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void drainAbandonsWorkAfterDeadline() {
+
+        final InFlightRequests inFlight = new InFlightRequests();
+        inFlight.begin();
+        inFlight.begin();
+        inFlight.end();
+
+        final DrainResult result = inFlight.drain(Duration.ofMillis(20));
+        assertEquals(0, result.getCompleted());
+        assertEquals(1, result.getAbandoned());
+    }
+
+    @Test(expected = PersistenceRuntimeException.class)
+    public void rejectNewWorkWhenClosing() {
+
+        final InFlightRequests inFlight = new InFlightRequests();
+        inFlight.drain(Duration.ZERO);
+        inFlight.begin();
+    }
+}
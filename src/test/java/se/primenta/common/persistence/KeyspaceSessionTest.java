@@ -0,0 +1,72 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.LinkedHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.SimpleStatement;
+
+public class KeyspaceSessionTest {
+
+    private FakeSession shared;
+    private KeyspaceSession session;
+
+    @Before
+    public void init() {
+        final LinkedHashMap<String, DataType> columns = new LinkedHashMap<>();
+        columns.put("id", DataType.cint());
+        columns.put("test", DataType.text());
+        shared = new FakeSession("sim").createTable("testkeyspace", columns);
+        session = new KeyspaceSession(shared, "other");
+    }
+
+    @After
+    public void close() {
+        shared.close();
+    }
+
+    @Test
+    public void unqualifiedStringsAreRejected() {
+
+        session.execute("INSERT INTO other.testkeyspace (id, test) VALUES (1, 'first')");
+        session.execute(new SimpleStatement("INSERT INTO other.testkeyspace (id, test) VALUES (2, 'second')"));
+        assertEquals(2, shared.size("testkeyspace"));
+
+        try {
+            session.execute("INSERT INTO testkeyspace (id, test) VALUES (3, 'third')");
+            fail("Expected an unqualified statement to be rejected");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            session.prepare(new SimpleStatement("SELECT * FROM testkeyspace WHERE id = ?"));
+            fail("Expected an unqualified statement to be rejected");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            session.execute("USE sim");
+            fail("Expected a change of keyspace to be rejected");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(2, shared.getRequests());
+    }
+
+    @Test
+    public void closeLeavesTheSharedSessionOpen() {
+
+        session.close();
+        assertTrue(session.closeAsync().isDone());
+        assertFalse(shared.isClosed());
+        assertEquals("other", session.getLoggedKeyspace());
+    }
+}
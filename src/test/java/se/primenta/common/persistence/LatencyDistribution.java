@@ -0,0 +1,43 @@
+package se.primenta.common.persistence;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency added to each request by the {@link FakeSession}.
+ *
+ * @author Sven Wesley
+ *
+ */
+@FunctionalInterface
+interface LatencyDistribution {
+
+    /**
+     * @return the latency of the next request in nanoseconds.
+     */
+    long nextNanos();
+
+    static LatencyDistribution none() {
+        return () -> 0;
+    }
+
+    static LatencyDistribution fixed(final Duration latency) {
+        final long nanos = latency.toNanos();
+        return () -> nanos;
+    }
+
+    static LatencyDistribution uniform(final Duration min, final Duration max) {
+        final long low = min.toNanos();
+        final long high = max.toNanos();
+        return () -> low + (long) (ThreadLocalRandom.current().nextDouble() * (high - low));
+    }
+
+    /**
+     * A minimum latency plus an exponential tail, the usual shape of a loaded server.
+     */
+    static LatencyDistribution exponential(final Duration min, final Duration mean) {
+        final long low = min.toNanos();
+        final double tail = Math.max(0, mean.toNanos() - low);
+        return () -> low + (long) (-tail * Math.log(1 - ThreadLocalRandom.current().nextDouble()));
+    }
+}
@@ -0,0 +1,243 @@
+package se.primenta.common.persistence;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongFunction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Drives a {@link CassandraExecutor} with an open loop of asynchronous requests at a target rate and reports
+ * throughput, latency percentiles, errors and heap use. Latency is measured from the time a request was scheduled to
+ * start, so a stalled executor shows up in the percentiles instead of lowering the rate. Run {@link #main} for a soak
+ * test against the {@link FakeSession}.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class LoadGenerator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadGenerator.class);
+
+    private final CassandraExecutor executor;
+    private final LongFunction<Statement> requests;
+    private int rate = 1000;
+    private Duration duration = Duration.ofSeconds(10);
+    private Optional<Duration> reportEvery = Optional.empty();
+    private int maxOutstanding = 100_000;
+
+    /**
+     * @param executor
+     *            to drive.
+     * @param requests
+     *            the statement of the n:th request.
+     */
+    LoadGenerator(final CassandraExecutor executor, final LongFunction<Statement> requests) {
+        this.executor = executor;
+        this.requests = requests;
+    }
+
+    /**
+     * Requests per second. Defaults to 1000.
+     */
+    LoadGenerator rate(final int perSecond) {
+        rate = perSecond;
+        return this;
+    }
+
+    /**
+     * How long to run. Defaults to 10 seconds.
+     */
+    LoadGenerator duration(final Duration length) {
+        duration = length;
+        return this;
+    }
+
+    /**
+     * Log a report of the run so far at an interval, for long runs.
+     */
+    LoadGenerator reportEvery(final Duration interval) {
+        reportEvery = Optional.of(interval);
+        return this;
+    }
+
+    /**
+     * Requests waiting for a response before new requests are skipped and counted as dropped. Defaults to 100 000.
+     */
+    LoadGenerator maxOutstanding(final int requestCount) {
+        maxOutstanding = requestCount;
+        return this;
+    }
+
+    /**
+     * Run the load and wait for the outstanding requests.
+     */
+    LoadReport run() {
+
+        final Run run = new Run();
+        final long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final long start = System.nanoTime();
+        final long end = start + duration.toNanos();
+        long nextReport = start + reportEvery.map(Duration::toNanos).orElse(Long.MAX_VALUE - start);
+        for (long n = 0;; n++) {
+            final long scheduled = start + n * interval;
+            if (scheduled >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduled) {
+                LockSupport.parkNanos(scheduled - now);
+            }
+            if (now >= nextReport) {
+                LOGGER.info("{}", run.report(now - start));
+                nextReport += reportEvery.get().toNanos();
+            }
+            run.sampleHeap();
+            if (run.outstanding.get() >= maxOutstanding) {
+                run.dropped.increment();
+                continue;
+            }
+            send(run, requests.apply(n), scheduled);
+        }
+        final long sent = System.nanoTime();
+        while (run.outstanding.get() > 0 && System.nanoTime() - sent < TimeUnit.SECONDS.toNanos(30)) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        return run.report(System.nanoTime() - start);
+    }
+
+    private void send(final Run run, final Statement statement, final long scheduled) {
+
+        run.outstanding.incrementAndGet();
+        final ResultSetFuture future;
+        try {
+            future = executor.executeAsync(statement);
+        } catch (final RuntimeException e) {
+            run.failed(e, scheduled);
+            return;
+        }
+        Futures.addCallback(future, new FutureCallback<ResultSet>() {
+
+            @Override
+            public void onSuccess(final ResultSet result) {
+                run.latencies.record(System.nanoTime() - scheduled);
+                run.completed.increment();
+                run.outstanding.decrementAndGet();
+            }
+
+            @Override
+            public void onFailure(final Throwable t) {
+                run.failed(t, scheduled);
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * Counters of a run.
+     */
+    private static final class Run {
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong outstanding = new AtomicLong();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+        private final long gcCountBefore = gcCount();
+        private final long gcMillisBefore = gcMillis();
+        private long maxHeapUsed;
+        private long sampledAt;
+
+        void failed(final Throwable t, final long scheduled) {
+            latencies.record(System.nanoTime() - scheduled);
+            errors.computeIfAbsent(t.getClass().getSimpleName(), e -> new LongAdder()).increment();
+            outstanding.decrementAndGet();
+        }
+
+        /**
+         * Heap use is sampled at most every 100 ms, reading it costs more than a request.
+         */
+        void sampleHeap() {
+            final long now = System.nanoTime();
+            if (now - sampledAt >= TimeUnit.MILLISECONDS.toNanos(100)) {
+                sampledAt = now;
+                maxHeapUsed = Math.max(maxHeapUsed, memory.getHeapMemoryUsage().getUsed());
+            }
+        }
+
+        LoadReport report(final long elapsedNanos) {
+            sampleHeap();
+            final Map<String, Long> errorCounts = new LinkedHashMap<>();
+            errors.forEach((k, v) -> errorCounts.put(k, v.sum()));
+            return new LoadReport(elapsedNanos, completed.sum(), dropped.sum(), errorCounts, latencies, maxHeapUsed,
+                    gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+        }
+
+        private static long gcCount() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                    .mapToLong(GarbageCollectorMXBean::getCollectionCount).filter(c -> c > 0).sum();
+        }
+
+        private static long gcMillis() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                    .mapToLong(GarbageCollectorMXBean::getCollectionTime).filter(c -> c > 0).sum();
+        }
+    }
+
+    /**
+     * Soak test of an executor on a {@link FakeSession}, with 80% reads and 20% writes over 100 000 keys.
+     *
+     * <pre>
+     * LoadGenerator [rate per second] [seconds] [mean latency ms] [write timeout rate]
+     * </pre>
+     */
+    public static void main(final String[] args) {
+
+        final int rate = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        final Duration duration = Duration.ofSeconds(args.length > 1 ? Long.parseLong(args[1]) : 60);
+        final long meanMillis = args.length > 2 ? Long.parseLong(args[2]) : 2;
+        final double writeTimeouts = args.length > 3 ? Double.parseDouble(args[3]) : 0.001;
+
+        final LinkedHashMap<String, DataType> columns = new LinkedHashMap<>();
+        columns.put("id", DataType.bigint());
+        columns.put("value", DataType.text());
+        final FakeSession session = new FakeSession("sim").createTable("kv", columns)
+                .withLatency(LatencyDistribution.exponential(Duration.ofNanos(meanMillis * 200_000),
+                        Duration.ofMillis(meanMillis)))
+                .withWriteTimeouts(writeTimeouts);
+        final CassandraExecutor executor = new CassandraExecutorImpl(session, "sim", new InFlightRequests(),
+                Optional.empty(), Optional.empty(), Optional.empty(), Priority.INTERACTIVE);
+        final PreparedStatement insert = session.prepare("INSERT INTO kv (id, value) VALUES (?, ?)");
+        final PreparedStatement select = session.prepare("SELECT value FROM kv WHERE id = ?");
+
+        final LoadReport report = new LoadGenerator(executor, n -> {
+            final long key = ThreadLocalRandom.current().nextLong(100_000);
+            return n % 5 == 0 ? insert.bind(key, "value " + n) : select.bind(key);
+        }).rate(rate).duration(duration).reportEvery(Duration.ofSeconds(10)).run();
+        System.out.println(report);
+        session.close();
+        System.exit(0);
+    }
+}
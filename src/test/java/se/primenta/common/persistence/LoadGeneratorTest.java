@@ -0,0 +1,60 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Optional;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+
+public class LoadGeneratorTest {
+
+    @Test
+    public void histogramPercentiles() {
+
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10_000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(10_000, histogram.count());
+        assertEquals(5_000_000, histogram.percentile(0.5), 5_000_000 * 0.016);
+        assertEquals(9_900_000, histogram.percentile(0.99), 9_900_000 * 0.016);
+        assertEquals(10_000_000, histogram.max(), 10_000_000 * 0.016);
+        for (long v : new long[] { 0, 63, 64, 1000, 123_456_789, Long.MAX_VALUE }) {
+            assertTrue(LatencyHistogram.lowest(LatencyHistogram.index(v)) <= v);
+        }
+    }
+
+    @Test
+    public void shortRun() {
+
+        final LinkedHashMap<String, DataType> columns = new LinkedHashMap<>();
+        columns.put("id", DataType.bigint());
+        columns.put("value", DataType.text());
+        final FakeSession session = new FakeSession("sim").createTable("kv", columns)
+                .withLatency(LatencyDistribution.uniform(Duration.ofMillis(1), Duration.ofMillis(3)))
+                .withWriteTimeouts(0.1);
+        final PreparedStatement insert = session.prepare("INSERT INTO kv (id, value) VALUES (?, ?)");
+        final CassandraExecutor executor = new CassandraExecutorImpl(session, "sim", new InFlightRequests(),
+                Optional.empty(), Optional.empty(), Optional.empty(), Priority.INTERACTIVE);
+
+        final LoadReport report = new LoadGenerator(executor, n -> insert.bind(n, "value"))
+                .rate(2000)
+                .duration(Duration.ofMillis(250))
+                .run();
+        session.close();
+
+        // The number of requests follows from the rate and the duration, however late they are sent. No latency is
+        // shorter than the injected minimum, while the upper bounds depend on the machine and are not checked.
+        assertEquals(500, report.getCompleted() + report.getErrorCount());
+        assertEquals(0, report.getDropped());
+        assertTrue(report.getErrors().get("WriteTimeoutException") > 10);
+        assertTrue(report.getP50() >= 1000);
+        assertTrue(report.getMaxHeapUsed() > 0);
+    }
+}
@@ -0,0 +1,117 @@
+package se.primenta.common.persistence;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of a {@link LoadGenerator} run. Latencies are in microseconds.
+ *
+ * @author Sven Wesley
+ *
+ */
+final class LoadReport {
+
+    private final long elapsedNanos;
+    private final long completed;
+    private final long dropped;
+    private final Map<String, Long> errors;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
+    private final long max;
+    private final long maxHeapUsed;
+    private final long gcCount;
+    private final long gcMillis;
+
+    LoadReport(final long elapsedNanos, final long completed, final long dropped, final Map<String, Long> errors,
+            final LatencyHistogram latencies, final long maxHeapUsed, final long gcCount, final long gcMillis) {
+        this.elapsedNanos = elapsedNanos;
+        this.completed = completed;
+        this.dropped = dropped;
+        this.errors = Collections.unmodifiableMap(errors);
+        p50 = micros(latencies.percentile(0.5));
+        p90 = micros(latencies.percentile(0.9));
+        p99 = micros(latencies.percentile(0.99));
+        p999 = micros(latencies.percentile(0.999));
+        max = micros(latencies.max());
+        this.maxHeapUsed = maxHeapUsed;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    private static long micros(final long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * @return completed requests per second.
+     */
+    double getThroughput() {
+        return completed * 1e9 / Math.max(1, elapsedNanos);
+    }
+
+    long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * @return requests not sent because too many were outstanding.
+     */
+    long getDropped() {
+        return dropped;
+    }
+
+    long getErrorCount() {
+        return errors.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * @return failed requests by exception name.
+     */
+    Map<String, Long> getErrors() {
+        return errors;
+    }
+
+    long getP50() {
+        return p50;
+    }
+
+    long getP90() {
+        return p90;
+    }
+
+    long getP99() {
+        return p99;
+    }
+
+    long getP999() {
+        return p999;
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    long getMaxHeapUsed() {
+        return maxHeapUsed;
+    }
+
+    long getGcCount() {
+        return gcCount;
+    }
+
+    long getGcMillis() {
+        return gcMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "%.0f s: %.0f req/s, %d completed, %d dropped, errors %s, latency us p50 %d p90 %d p99 %d p999 %d"
+                        + " max %d, max heap %d MB, %d GCs in %d ms",
+                elapsedNanos / 1e9, getThroughput(), completed, dropped, errors, p50, p90, p99, p999, max,
+                maxHeapUsed >> 20, gcCount, gcMillis);
+    }
+}
@@ -0,0 +1,112 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.policies.FallthroughRetryPolicy;
+
+public class ProfiledPreparedStatementTest {
+
+    private FakeSession session;
+    private PreparedStatement delegate;
+    private final ExecutionProfile critical = new ExecutionProfile.Builder()
+            .withConsistency(ConsistencyLevel.QUORUM)
+            .withSerialConsistency(ConsistencyLevel.LOCAL_SERIAL)
+            .withReadTimeoutMillis(500)
+            .idempotent(false)
+            .build();
+    private final ExecutionProfile cheap = new ExecutionProfile.Builder()
+            .withConsistency(ConsistencyLevel.ONE)
+            .withFetchSize(10)
+            .idempotent(true)
+            .build();
+
+    @Before
+    public void init() {
+        final LinkedHashMap<String, DataType> columns = new LinkedHashMap<>();
+        columns.put("id", DataType.cint());
+        columns.put("test", DataType.text());
+        session = new FakeSession("sim").createTable("testprofile", columns);
+        delegate = session.prepare("SELECT * FROM testprofile");
+    }
+
+    @After
+    public void close() {
+        session.close();
+    }
+
+    @Test
+    public void profilesOverOneDelegate() {
+
+        final BoundStatement criticalBound = new ProfiledPreparedStatement(delegate, critical).bind();
+        final BoundStatement cheapBound = new ProfiledPreparedStatement(delegate, cheap).bind();
+
+        assertEquals(ConsistencyLevel.QUORUM, criticalBound.getConsistencyLevel());
+        assertEquals(ConsistencyLevel.LOCAL_SERIAL, criticalBound.getSerialConsistencyLevel());
+        assertEquals(500, criticalBound.getReadTimeoutMillis());
+        assertFalse(criticalBound.isIdempotent());
+        assertEquals(ConsistencyLevel.ONE, cheapBound.getConsistencyLevel());
+        assertEquals(10, cheapBound.getFetchSize());
+        assertTrue(cheapBound.isIdempotent());
+        assertNull(delegate.getConsistencyLevel());
+    }
+
+    @Test
+    public void settersOverrideTheProfileOfOneStatement() {
+
+        final ByteBuffer key = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        final Map<String, ByteBuffer> payload = Collections.singletonMap("origin", ByteBuffer.wrap(new byte[] { 4 }));
+        final PreparedStatement first = new ProfiledPreparedStatement(delegate, critical)
+                .setConsistencyLevel(ConsistencyLevel.ALL)
+                .setSerialConsistencyLevel(ConsistencyLevel.SERIAL)
+                .setRetryPolicy(FallthroughRetryPolicy.INSTANCE)
+                .setIdempotent(true)
+                .enableTracing()
+                .setRoutingKey(key)
+                .setOutgoingPayload(payload);
+        final PreparedStatement second = new ProfiledPreparedStatement(delegate, critical);
+
+        final BoundStatement bound = first.bind();
+        assertEquals(ConsistencyLevel.ALL, bound.getConsistencyLevel());
+        assertEquals(ConsistencyLevel.SERIAL, bound.getSerialConsistencyLevel());
+        assertSame(FallthroughRetryPolicy.INSTANCE, bound.getRetryPolicy());
+        assertTrue(bound.isIdempotent());
+        assertTrue(bound.isTracing());
+        assertEquals(key, bound.getRoutingKey(null, null));
+        assertEquals(payload, bound.getOutgoingPayload());
+        assertFalse(first.disableTracing().bind().isTracing());
+
+        final BoundStatement other = second.bind();
+        assertEquals(ConsistencyLevel.QUORUM, other.getConsistencyLevel());
+        assertFalse(other.isIdempotent());
+        assertFalse(other.isTracing());
+        assertNull(other.getRoutingKey(null, null));
+        assertNull(other.getOutgoingPayload());
+        assertNull(delegate.getRoutingKey());
+        assertNull(delegate.getOutgoingPayload());
+    }
+
+    @Test
+    public void compositeRoutingKey() {
+
+        final ByteBuffer key = ProfiledPreparedStatement.composeRoutingKey(ByteBuffer.wrap(new byte[] { 1 }),
+                ByteBuffer.wrap(new byte[] { 2, 3 }));
+        assertEquals(ByteBuffer.wrap(new byte[] { 0, 1, 1, 0, 0, 2, 2, 3, 0 }), key);
+    }
+}
@@ -0,0 +1,182 @@
+package se.primenta.common.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.datastax.driver.core.DataType;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class RateLimitsTest {
+
+    @Test
+    public void tokenBucket() {
+
+        final long second = TimeUnit.SECONDS.toNanos(1);
+        final TokenBucket bucket = new TokenBucket(10, 2, 0);
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(0, bucket.reserve(0));
+        assertEquals(second / 10, bucket.reserve(0));
+        assertEquals(2 * second / 10, bucket.reserve(0));
+        // Refilled up to the burst, the debt is paid first.
+        assertEquals(0, bucket.reserve(2 * second));
+        assertEquals(0, bucket.reserve(2 * second));
+        assertEquals(second / 10, bucket.reserve(2 * second));
+    }
+
+    @Test
+    public void weightedFairShares() {
+
+        final RateLimits limits = new RateLimits.Builder().maxInFlight(1, 0).build();
+        assertTrue(limits.acquire(Priority.INTERACTIVE, Optional.empty()).isDone());
+
+        final List<Priority> order = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            for (final Priority priority : Priority.values()) {
+                limits.acquire(priority, Optional.empty()).addListener(() -> order.add(priority),
+                        MoreExecutors.directExecutor());
+            }
+        }
+        assertEquals(90, limits.getStats().values().stream().mapToInt(PriorityClassStats::getQueueDepth).sum());
+
+        Priority holder = Priority.INTERACTIVE;
+        for (int i = 0; i < 33; i++) {
+            limits.release(holder);
+            holder = order.get(i);
+        }
+        // Weights 8, 2 and 1 share the slot 24, 6 and 3 times over 33 dispatches.
+        final List<Priority> dispatched = order.subList(0, 33);
+        assertEquals(24, dispatched.stream().filter(p -> p == Priority.INTERACTIVE).count());
+        assertEquals(6, dispatched.stream().filter(p -> p == Priority.BATCH).count());
+        assertEquals(3, dispatched.stream().filter(p -> p == Priority.BACKGROUND).count());
+        assertEquals(1, limits.getInFlight());
+    }
+
+    @Test
+    public void reservedSlotsAndFullQueue() {
+
+        final RateLimits limits = new RateLimits.Builder().maxInFlight(2, 1).maxQueued(1).build();
+        assertTrue(limits.acquire(Priority.BACKGROUND, Optional.empty()).isDone());
+        final ListenableFuture<Void> queued = limits.acquire(Priority.BACKGROUND, Optional.empty());
+        assertFalse(queued.isDone());
+        try {
+            limits.acquire(Priority.BACKGROUND, Optional.empty());
+            fail("Expected the queue to be full");
+        } catch (final ThrottledException e) {
+            // One statement may wait.
+            assertTrue(e.getMessage().startsWith("Queue full"));
+        }
+        // The last slot is kept for interactive statements.
+        assertTrue(limits.acquire(Priority.INTERACTIVE, Optional.empty()).isDone());
+
+        final PriorityClassStats background = limits.getStats().get(Priority.BACKGROUND);
+        assertEquals(1, background.getQueueDepth());
+        assertEquals(1, background.getInFlight());
+        assertEquals(1, background.getRejected());
+
+        limits.release(Priority.INTERACTIVE);
+        assertFalse(queued.isDone());
+        limits.release(Priority.BACKGROUND);
+        assertTrue(queued.isDone());
+        assertEquals(2, limits.getStats().get(Priority.BACKGROUND).getDispatched());
+    }
+
+    @Test
+    public void boundedQueueWait() {
+
+        final RateLimits limits = new RateLimits.Builder().maxInFlight(1, 0).maxQueueWait(Duration.ofMillis(20))
+                .build();
+        limits.await(Priority.INTERACTIVE, Optional.empty());
+        try {
+            limits.await(Priority.BATCH, Optional.empty());
+            fail("Expected the wait to time out");
+        } catch (final ThrottledException e) {
+            // The slot is never given back.
+            assertTrue(e.getMessage().startsWith("Max queue wait passed"));
+        }
+        final PriorityClassStats batch = limits.getStats().get(Priority.BATCH);
+        assertEquals(0, batch.getQueueDepth());
+        assertEquals(1, batch.getRejected());
+
+        // The timed out statement does not take the slot when it is given back.
+        limits.release(Priority.INTERACTIVE);
+        assertEquals(0, limits.getInFlight());
+        assertEquals(0, limits.getStats().get(Priority.BATCH).getDispatched());
+    }
+
+    @Test
+    public void tableRateOnExecutor() {
+
+        final LinkedHashMap<String, DataType> columns = new LinkedHashMap<>();
+        columns.put("id", DataType.cint());
+        columns.put("test", DataType.text());
+        final FakeSession session = new FakeSession("sim").createTable("testexecutor", columns);
+        final AtomicLong nanos = new AtomicLong();
+        final List<Long> delays = new ArrayList<>();
+        final List<Runnable> timer = new ArrayList<>();
+        final RateLimits limits = new RateLimits.Builder().table("sim.testexecutor", 100, 1)
+                .ticker(new Ticker() {
+                    @Override
+                    public long read() {
+                        return nanos.get();
+                    }
+                })
+                .scheduler((task, delayNanos) -> {
+                    delays.add(delayNanos);
+                    timer.add(task);
+                })
+                .build();
+        final InFlightRequests inFlight = new InFlightRequests();
+        final CassandraExecutor executor = new CassandraExecutorImpl(session, "sim", inFlight, Optional.empty(),
+                Optional.empty(), Optional.of(limits), Priority.BATCH);
+        final PreparedStatement insert = session.prepare("INSERT INTO testexecutor (id, test) VALUES (?, ?)");
+
+        final List<ResultSetFuture> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(executor.executeAsync(insert.bind(i, "x")));
+        }
+        // The first statement takes the burst token, the others reserve the next tokens 10 ms apart.
+        final long token = TimeUnit.MILLISECONDS.toNanos(10);
+        assertEquals(Arrays.asList(token, 2 * token, 3 * token, 4 * token), delays);
+        futures.get(0).getUninterruptibly();
+        assertFalse(futures.get(1).isDone());
+        assertEquals(4, limits.getStats().get(Priority.BATCH).getQueueDepth());
+
+        for (int i = 0; i < timer.size(); i++) {
+            nanos.set(delays.get(i));
+            timer.get(i).run();
+        }
+        futures.forEach(ResultSetFuture::getUninterruptibly);
+        assertEquals(0, inFlight.drain(Duration.ofSeconds(5)).getAbandoned());
+        session.close();
+
+        assertEquals(5, session.size("testexecutor"));
+        final PriorityClassStats batch = limits.getStats().get(Priority.BATCH);
+        assertEquals(5, batch.getDispatched());
+        assertEquals(0, batch.getQueueDepth());
+        assertEquals(40, batch.getMaxWaitMillis(), 0);
+        assertEquals(20, batch.getMeanWaitMillis(), 0);
+        assertEquals(0, limits.getInFlight());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tableMustBeQualified() {
+        new RateLimits.Builder().table("testexecutor", 100, 1);
+    }
+}